@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+/**
+ * Synthetic datasets for the benchmarks, generated once per scale with a fixed seed and kept in the directory given by
+ * the system property ssnmm.benchmarks.dir (the temp directory by default), so that the forks of a run and later runs
+ * measure the same data.
+ *
+ * The ratings look like the Yahoo songs dataset at a smaller scale: integer ratings from 1 to 5 in lines of
+ * "user TAB item TAB rating", grouped by user with dense ids. The number of ratings per user is log-normally
+ * distributed and the popularity of the items follows a power law, the rating values depend on a user and an item
+ * offset, so there are biases to learn.
+ */
+public class GeneratedDatasets {
+
+  private static final long SEED = 0xdecafbadL;
+
+  private static final int RATINGS_PER_USER = 40;
+  private static final int RATINGS_PER_ITEM = 100;
+  private static final int SIMILARITIES_PER_ITEM = 50;
+
+  private GeneratedDatasets() {}
+
+  public static File dir() {
+    File dir = new File(System.getProperty("ssnmm.benchmarks.dir",
+        new File(System.getProperty("java.io.tmpdir"), "ssnmm-benchmarks").getPath()));
+    Preconditions.checkState(dir.isDirectory() || dir.mkdirs(), "Unable to create " + dir);
+    return dir;
+  }
+
+  /** number of distinct items in the ratings of the given scale */
+  public static int numItems(int numRatings) {
+    return Math.max(1000, numRatings / RATINGS_PER_ITEM);
+  }
+
+  /**
+   * The ratings file with the given number of ratings, generated on first use
+   */
+  public static File ratings(int numRatings) throws IOException {
+    File file = new File(dir(), "ratings-" + numRatings + ".tsv");
+    if (!file.exists()) {
+      File tempFile = tempFile(file);
+      writeRatings(tempFile, numRatings);
+      commit(tempFile, file);
+    }
+    return file;
+  }
+
+  private static void writeRatings(File file, int numRatings) throws IOException {
+    Random random = new Random(SEED);
+    int numItems = numItems(numRatings);
+
+    double[] itemOffsets = new double[numItems];
+    for (int item = 0; item < numItems; item++) {
+      itemOffsets[item] = random.nextGaussian() * 0.5;
+    }
+
+    int maxRatingsPerUser = numItems / 2;
+    BitSet rated = new BitSet(numItems);
+    int[] items = new int[maxRatingsPerUser];
+
+    Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), Charsets.UTF_8), 1 << 20);
+    try {
+      int written = 0;
+      for (int user = 0; written < numRatings; user++) {
+        /* log-normal with a mean of RATINGS_PER_USER */
+        int count = (int) Math.round(Math.exp(random.nextGaussian()) * RATINGS_PER_USER / Math.sqrt(Math.E));
+        count = Math.max(1, Math.min(Math.min(count, maxRatingsPerUser), numRatings - written));
+
+        for (int n = 0; n < count; n++) {
+          int item;
+          do {
+            /* the item at rank r is drawn with a probability roughly proportional to 1 / sqrt(r) */
+            double uniform = random.nextDouble();
+            item = (int) (numItems * uniform * uniform);
+          } while (rated.get(item));
+          rated.set(item);
+          items[n] = item;
+        }
+        Arrays.sort(items, 0, count);
+
+        double userOffset = random.nextGaussian() * 0.7;
+        for (int n = 0; n < count; n++) {
+          rated.clear(items[n]);
+          long value = Math.round(3.2 + userOffset + itemOffsets[items[n]] + random.nextGaussian());
+          writer.write(user + "\t" + items[n] + "\t" + Math.max(1, Math.min(5, value)) + "\n");
+        }
+        written += count;
+      }
+    } finally {
+      Closeables.close(writer, false);
+    }
+  }
+
+  /**
+   * Similarity matrix with SIMILARITIES_PER_ITEM random neighbors per item, like the ones read by the evaluation
+   */
+  public static SimilarityMatrix similarities(int numItems) {
+    Random random = new Random(SEED + numItems);
+    int numSimilarities = numItems * SIMILARITIES_PER_ITEM;
+    int[] rows = new int[numSimilarities];
+    int[] neighbors = new int[numSimilarities];
+    float[] values = new float[numSimilarities];
+    BitSet chosen = new BitSet(numItems);
+    int position = 0;
+    for (int item = 0; item < numItems; item++) {
+      chosen.clear();
+      for (int n = 0; n < SIMILARITIES_PER_ITEM; n++) {
+        int neighbor;
+        do {
+          neighbor = random.nextInt(numItems);
+        } while (neighbor == item || chosen.get(neighbor));
+        chosen.set(neighbor);
+        rows[position] = item;
+        neighbors[position] = neighbor;
+        values[position] = 1.0f - random.nextFloat();
+        position++;
+      }
+    }
+    return SimilarityMatrix.fromEntries(numItems, rows, neighbors, values, numSimilarities);
+  }
+
+  /**
+   * The similarity matrix in the binary format of {@link SimilarityMatrix#write(File)}
+   */
+  public static File similarityMatrixFile(int numItems) throws IOException {
+    File file = new File(dir(), "similarities-" + numItems + ".bin");
+    if (!file.exists()) {
+      File tempFile = tempFile(file);
+      similarities(numItems).write(tempFile);
+      commit(tempFile, file);
+    }
+    return file;
+  }
+
+  /**
+   * The similarity matrix as the sequence files written by Mahout's ItemSimilarityJob
+   */
+  public static File similarityMatrixDir(int numItems) throws IOException {
+    File dir = new File(dir(), "similarityMatrix-" + numItems);
+    if (!dir.exists()) {
+      File tempDir = tempFile(dir);
+      SimilarityMatrix similarities = similarities(numItems);
+      Configuration conf = new Configuration();
+      Path path = new Path(new File(tempDir, "part-r-00000").getAbsolutePath());
+      SequenceFile.Writer writer = SequenceFile.createWriter(FileSystem.getLocal(conf), conf, path,
+          IntWritable.class, VectorWritable.class);
+      try {
+        for (int item = 0; item < numItems; item++) {
+          Vector row = new RandomAccessSparseVector(numItems, SIMILARITIES_PER_ITEM);
+          for (int n = similarities.rowStart(item); n < similarities.rowEnd(item); n++) {
+            row.setQuick(similarities.neighbor(n), similarities.value(n));
+          }
+          writer.append(new IntWritable(item), new VectorWritable(row));
+        }
+      } finally {
+        Closeables.close(writer, false);
+      }
+      commit(tempDir, dir);
+    }
+    return dir;
+  }
+
+  /**
+   * A model bundle of the similarity matrix with random biases and the identity as dictionaries
+   */
+  public static File modelBundle(int numItems, int numUsers) throws IOException {
+    File file = new File(dir(), "model-" + numItems + "-" + numUsers + ".bin");
+    if (!file.exists()) {
+      Random random = new Random(SEED);
+      double[] userBiases = new double[numUsers];
+      for (int user = 0; user < numUsers; user++) {
+        userBiases[user] = random.nextGaussian() * 0.5;
+      }
+      double[] itemBiases = new double[numItems];
+      for (int item = 0; item < numItems; item++) {
+        itemBiases[item] = random.nextGaussian() * 0.5;
+      }
+      File tempFile = tempFile(file);
+      ModelBundle.write(tempFile, 3.2, userBiases, itemBiases, similarities(numItems), identity(numUsers),
+          identity(numItems));
+      commit(tempFile, file);
+    }
+    return file;
+  }
+
+  private static IDDictionary identity(int size) {
+    long[] ids = new long[size];
+    for (int index = 0; index < size; index++) {
+      ids[index] = index;
+    }
+    return IDDictionary.frozen(ids);
+  }
+
+  /** a file next to the target that is unique to this process, so concurrent forks do not interfere */
+  private static File tempFile(File file) {
+    return new File(file.getParentFile(), file.getName() + "." + System.nanoTime() + ".tmp");
+  }
+
+  private static void commit(File tempFile, File file) {
+    if (!tempFile.renameTo(file)) {
+      Preconditions.checkState(file.exists(), "Unable to move " + tempFile + " to " + file);
+    }
+  }
+}
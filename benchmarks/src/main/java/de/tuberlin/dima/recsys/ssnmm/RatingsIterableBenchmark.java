@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Parses a ratings file with {@link RatingsIterable}, with raw ids and with dictionaries as in the jobs that read
+ * the ratings through a {@link DatasetProfile}. Besides the file passes per second, the ratings per second are
+ * reported as a secondary result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RatingsIterableBenchmark {
+
+  @Param({ "100000", "1000000", "10000000" })
+  public int numRatings;
+
+  private File ratings;
+  private IDDictionary userIDs;
+  private IDDictionary itemIDs;
+
+  @Setup
+  public void setup() throws IOException {
+    ratings = GeneratedDatasets.ratings(numRatings);
+    DatasetProfile profile = DatasetProfile.profile(ratings);
+    userIDs = profile.userIDs();
+    itemIDs = profile.itemIDs();
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class ParsedRatings {
+
+    public long ratings;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      ratings = 0;
+    }
+  }
+
+  @Benchmark
+  public void parse(ParsedRatings parsed, Blackhole blackhole) throws IOException {
+    for (Rating rating : new RatingsIterable(ratings)) {
+      blackhole.consume(rating.user());
+      blackhole.consume(rating.item());
+      blackhole.consume(rating.rating());
+      parsed.ratings++;
+    }
+  }
+
+  @Benchmark
+  public void parseWithDictionaries(ParsedRatings parsed, Blackhole blackhole) throws IOException {
+    for (Rating rating : new RatingsIterable(ratings, 0, Long.MAX_VALUE, userIDs, itemIDs)) {
+      blackhole.consume(rating.user());
+      blackhole.consume(rating.item());
+      blackhole.consume(rating.rating());
+      parsed.ratings++;
+    }
+  }
+}
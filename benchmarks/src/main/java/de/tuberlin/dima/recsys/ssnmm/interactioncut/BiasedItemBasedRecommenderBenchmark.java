@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.interactioncut;
+
+import de.tuberlin.dima.recsys.ssnmm.GeneratedDatasets;
+import de.tuberlin.dima.recsys.ssnmm.Rating;
+import de.tuberlin.dima.recsys.ssnmm.RatingsIterable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Estimates preferences with the recommender of the interaction-cut evaluation, configured as in {@link Evaluate}: a
+ * compact training model cut to maxPrefsPerUser preferences per user, Tanimoto similarities on item bitsets and
+ * k = 80. The queries are random pairs of a user and an item the user did not rate, so every estimate runs through
+ * doEstimatePreference.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BiasedItemBasedRecommenderBenchmark {
+
+  private static final int NUM_QUERIES = 4096;
+  private static final int ITEMS_PER_BATCH = 16;
+
+  @Param({ "100000", "1000000", "10000000" })
+  public int numRatings;
+
+  @Param({ "100", "500" })
+  public int maxPrefsPerUser;
+
+  private BiasedItemBasedRecommender recommender;
+  private long[] userIDs;
+  /** the items of every query, none of them rated by the user of the query */
+  private long[][] itemIDs;
+
+  @Setup
+  public void setup() throws IOException, TasteException {
+
+    FastByIDMap<PreferenceArray> data = new FastByIDMap<PreferenceArray>();
+    List<Rating> userRatings = new ArrayList<Rating>();
+    for (Rating rating : new RatingsIterable(GeneratedDatasets.ratings(numRatings))) {
+      if (!userRatings.isEmpty() && userRatings.get(0).user() != rating.user()) {
+        add(data, userRatings);
+      }
+      userRatings.add(rating.clone());
+    }
+    add(data, userRatings);
+
+    DataModel dataModel = CompactDataModel.sample(data, maxPrefsPerUser, new Random(42));
+    recommender = new BiasedItemBasedRecommender(dataModel, new BitsetTanimotoSimilarity(dataModel), 80, 10, 25);
+
+    Random random = new Random(42);
+    long[] allUserIDs = new long[dataModel.getNumUsers()];
+    LongPrimitiveIterator ids = dataModel.getUserIDs();
+    for (int n = 0; n < allUserIDs.length; n++) {
+      allUserIDs[n] = ids.nextLong();
+    }
+    long[] allItemIDs = new long[dataModel.getNumItems()];
+    ids = dataModel.getItemIDs();
+    for (int n = 0; n < allItemIDs.length; n++) {
+      allItemIDs[n] = ids.nextLong();
+    }
+
+    userIDs = new long[NUM_QUERIES];
+    itemIDs = new long[NUM_QUERIES][ITEMS_PER_BATCH];
+    for (int query = 0; query < NUM_QUERIES; query++) {
+      long userID = allUserIDs[random.nextInt(allUserIDs.length)];
+      userIDs[query] = userID;
+      for (int n = 0; n < ITEMS_PER_BATCH; n++) {
+        long itemID;
+        do {
+          itemID = allItemIDs[random.nextInt(allItemIDs.length)];
+        } while (dataModel.getPreferenceValue(userID, itemID) != null);
+        itemIDs[query][n] = itemID;
+      }
+    }
+  }
+
+  private static void add(FastByIDMap<PreferenceArray> data, List<Rating> userRatings) {
+    PreferenceArray preferences = new GenericUserPreferenceArray(userRatings.size());
+    for (int n = 0; n < userRatings.size(); n++) {
+      Rating rating = userRatings.get(n);
+      preferences.setUserID(n, rating.user());
+      preferences.setItemID(n, rating.item());
+      preferences.setValue(n, (float) rating.rating());
+    }
+    data.put(userRatings.get(0).user(), preferences);
+    userRatings.clear();
+  }
+
+  @State(Scope.Thread)
+  public static class Queries {
+    int next;
+  }
+
+  @Benchmark
+  public float estimatePreference(Queries queries) throws TasteException {
+    int query = queries.next++ & (NUM_QUERIES - 1);
+    return recommender.estimatePreference(userIDs[query], itemIDs[query][0]);
+  }
+
+  @Benchmark
+  public float[] estimatePreferences(Queries queries) throws TasteException {
+    int query = queries.next++ & (NUM_QUERIES - 1);
+    return recommender.estimatePreferences(userIDs[query], itemIDs[query]);
+  }
+}
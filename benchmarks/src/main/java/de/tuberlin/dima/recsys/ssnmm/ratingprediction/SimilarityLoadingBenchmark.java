@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.ratingprediction;
+
+import de.tuberlin.dima.recsys.ssnmm.GeneratedDatasets;
+import de.tuberlin.dima.recsys.ssnmm.ModelBundle;
+import de.tuberlin.dima.recsys.ssnmm.SimilarityMatrix;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The ways {@link Evaluate} gets hold of the similarities: parsing the sequence files of Mahout's ItemSimilarityJob,
+ * mapping the binary similarity matrix and mapping the model bundle with and without verifying its checksum. As
+ * mapping alone defers the reads, the benchmarks that map a file sum up all similarities once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SimilarityLoadingBenchmark {
+
+  @Param({ "10000", "100000", "500000" })
+  public int numItems;
+
+  private File similarityMatrixDir;
+  private File similarityMatrixFile;
+  private File modelBundleFile;
+
+  @Setup
+  public void setup() throws IOException {
+    similarityMatrixDir = GeneratedDatasets.similarityMatrixDir(numItems);
+    similarityMatrixFile = GeneratedDatasets.similarityMatrixFile(numItems);
+    modelBundleFile = GeneratedDatasets.modelBundle(numItems, 4 * numItems);
+  }
+
+  @Benchmark
+  public SimilarityMatrix readSequenceFiles() {
+    return SimilarityMatrix.readSequenceFiles(similarityMatrixDir, numItems, null);
+  }
+
+  @Benchmark
+  public double readBinary() throws IOException {
+    return sum(SimilarityMatrix.read(similarityMatrixFile));
+  }
+
+  @Benchmark
+  public double openModelBundle() throws IOException {
+    return sum(ModelBundle.open(modelBundleFile).similarities());
+  }
+
+  @Benchmark
+  public double openModelBundleUnverified() throws IOException {
+    return sum(ModelBundle.open(modelBundleFile, false).similarities());
+  }
+
+  private static double sum(SimilarityMatrix similarities) {
+    double sum = 0;
+    for (int position = 0; position < similarities.numSimilarities(); position++) {
+      sum += similarities.value(position) + similarities.neighbor(position);
+    }
+    return sum;
+  }
+}
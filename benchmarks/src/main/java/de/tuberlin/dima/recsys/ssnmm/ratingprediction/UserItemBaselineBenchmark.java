@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.ratingprediction;
+
+import de.tuberlin.dima.recsys.ssnmm.DatasetProfile;
+import de.tuberlin.dima.recsys.ssnmm.GeneratedDatasets;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One training iteration of {@link UserItemBaseline} (an item and a user bias pass), reading the ratings from the
+ * file in every pass or from the ratings cached in memory. The benchmark lives in the package of the baseline to call
+ * its package-private training methods.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UserItemBaselineBenchmark {
+
+  @Param({ "100000", "1000000", "10000000" })
+  public int numRatings;
+
+  @Param({ "1", "4" })
+  public int numThreads;
+
+  private UserItemBaseline fromFile;
+  private UserItemBaseline cached;
+
+  @Setup
+  public void setup() throws IOException {
+    File ratings = GeneratedDatasets.ratings(numRatings);
+    DatasetProfile profile = DatasetProfile.profile(ratings);
+    /* the tests are never run, the training ratings stand in for them */
+    fromFile = new UserItemBaseline(ratings, ratings, 0.5, 0, profile, numThreads);
+    cached = new UserItemBaseline(ratings, ratings, 0.5, 0, profile, numThreads);
+    cached.cacheRatings();
+  }
+
+  @Benchmark
+  public void trainFromFile() throws IOException {
+    fromFile.train();
+  }
+
+  @Benchmark
+  public void trainCached() throws IOException {
+    cached.train();
+  }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Metrics;
+import de.tuberlin.dima.recsys.ssnmm.metrics.MetricsReporter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.PhaseTimer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Fixed-width binary ratings format, converts a user[TAB]item[TAB]rating file once so that repeated passes over the
+ * data only need to read memory-mapped records instead of parsing text.
+ *
+ * The file starts with a header holding the number of ratings, users and items as well as the average rating,
+ * followed by one record of (int user, int item, float rating) per rating in the order of the text file.
+ */
+public class BinaryRatings {
+
+  static final int MAGIC = 0x524e5353;
+  static final int VERSION = 1;
+
+  static final int HEADER_SIZE = 32;
+  static final int RECORD_SIZE = 12;
+
+  static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+  private static final int WRITE_BUFFER_SIZE = RECORD_SIZE * 65536;
+
+  private final long numRatings;
+  private final int numUsers;
+  private final int numItems;
+  private final double mu;
+
+  private BinaryRatings(long numRatings, int numUsers, int numItems, double mu) {
+    this.numRatings = numRatings;
+    this.numUsers = numUsers;
+    this.numItems = numItems;
+    this.mu = mu;
+  }
+
+  public static void main(String[] args) throws IOException {
+
+    File ratingsFile = new File("/home/ssc/Entwicklung/datasets/yahoo-songs/songs.tsv");
+    File binaryFile = new File("/home/ssc/Entwicklung/datasets/yahoo-songs/songs.bin");
+
+    MetricsReporter reporter = Metrics.startReporting("BinaryRatings");
+    try {
+      BinaryRatings header = convert(ratingsFile, binaryFile);
+
+      System.out.println("Converted " + header.numRatings() + " ratings of " + header.numUsers() + " users and "
+          + header.numItems() + " items, average rating " + header.mu());
+    } finally {
+      reporter.stop();
+    }
+  }
+
+  /** number of ratings in the file */
+  public long numRatings() {
+    return numRatings;
+  }
+
+  /** largest user id plus one */
+  public int numUsers() {
+    return numUsers;
+  }
+
+  /** largest item id plus one */
+  public int numItems() {
+    return numItems;
+  }
+
+  /** average rating */
+  public double mu() {
+    return mu;
+  }
+
+  /**
+   * Converts a text ratings file into the binary format
+   */
+  public static BinaryRatings convert(File ratingsFile, File binaryFile) throws IOException {
+    Preconditions.checkNotNull(ratingsFile);
+    Preconditions.checkNotNull(binaryFile);
+
+    long numRatings = 0;
+    int maxUser = -1;
+    int maxItem = -1;
+    double sum = 0;
+
+    PhaseTimer.Phase phase =
+        Metrics.get().timer("binaryRatings.convert").start(Metrics.get().counter("ratings.parsed"));
+    RandomAccessFile out = new RandomAccessFile(binaryFile, "rw");
+    try {
+      out.setLength(0);
+      FileChannel channel = out.getChannel();
+      channel.position(HEADER_SIZE);
+
+      ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(BYTE_ORDER);
+
+      for (Rating rating : new RatingsIterable(ratingsFile)) {
+        if (!buffer.hasRemaining()) {
+          flush(buffer, channel);
+        }
+        buffer.putInt(rating.user());
+        buffer.putInt(rating.item());
+        buffer.putFloat((float) rating.rating());
+
+        maxUser = Math.max(maxUser, rating.user());
+        maxItem = Math.max(maxItem, rating.item());
+        sum += rating.rating();
+        numRatings++;
+      }
+      flush(buffer, channel);
+
+      BinaryRatings header = new BinaryRatings(numRatings, maxUser + 1, maxItem + 1,
+          numRatings > 0 ? sum / numRatings : Double.NaN);
+
+      ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE).order(BYTE_ORDER);
+      headerBuffer.putInt(MAGIC);
+      headerBuffer.putInt(VERSION);
+      headerBuffer.putLong(header.numRatings);
+      headerBuffer.putInt(header.numUsers);
+      headerBuffer.putInt(header.numItems);
+      headerBuffer.putDouble(header.mu);
+      headerBuffer.flip();
+      while (headerBuffer.hasRemaining()) {
+        channel.write(headerBuffer, headerBuffer.position());
+      }
+
+      return header;
+    } finally {
+      Closeables.closeQuietly(out);
+      phase.stop();
+    }
+  }
+
+  /**
+   * Reads the header of a binary ratings file
+   */
+  public static BinaryRatings readHeader(File binaryFile) throws IOException {
+    ByteBuffer headerBuffer = ByteBuffer.allocate(HEADER_SIZE).order(BYTE_ORDER);
+    FileInputStream in = new FileInputStream(binaryFile);
+    try {
+      FileChannel channel = in.getChannel();
+      while (headerBuffer.hasRemaining() && channel.read(headerBuffer) != -1) {}
+    } finally {
+      Closeables.closeQuietly(in);
+    }
+    Preconditions.checkState(!headerBuffer.hasRemaining(), "Truncated header in " + binaryFile);
+    headerBuffer.flip();
+
+    Preconditions.checkState(headerBuffer.getInt() == MAGIC, binaryFile + " is not a binary ratings file");
+    int version = headerBuffer.getInt();
+    Preconditions.checkState(version == VERSION, "Unsupported version " + version + " of " + binaryFile);
+
+    long numRatings = headerBuffer.getLong();
+    int numUsers = headerBuffer.getInt();
+    int numItems = headerBuffer.getInt();
+    double mu = headerBuffer.getDouble();
+
+    Preconditions.checkState(binaryFile.length() == HEADER_SIZE + numRatings * RECORD_SIZE,
+        "Unexpected length of " + binaryFile);
+
+    return new BinaryRatings(numRatings, numUsers, numItems, mu);
+  }
+
+  /**
+   * Checks whether a file starts with the magic number of the binary format
+   */
+  public static boolean isBinaryRatingsFile(File file) throws IOException {
+    if (file.length() < HEADER_SIZE) {
+      return false;
+    }
+    ByteBuffer magic = ByteBuffer.allocate(4).order(BYTE_ORDER);
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      while (magic.hasRemaining() && channel.read(magic) != -1) {}
+    } finally {
+      Closeables.closeQuietly(in);
+    }
+    return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+  }
+
+  private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+    long start = System.nanoTime();
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+    /* looked up per flush, so that merely reading binary ratings registers no counter */
+    Metrics.get().counter("binaryRatings.writeNanos").add(System.nanoTime() - start);
+  }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.UnmodifiableIterator;
+import com.google.common.io.Closeables;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A class to iterate over a file in the {@link BinaryRatings} format, the records are memory-mapped in windows so
+ * that files larger than 2GB can be read. The iteration can be restricted to a range of records and the ids can
+ * optionally be translated to dense indices by {@link IDDictionary}s.
+ */
+public class BinaryRatingsIterable extends UnmodifiableIterator<Rating> implements Iterable<Rating> {
+
+  private static final long RECORDS_PER_WINDOW = 1 << 24;
+
+  private final RandomAccessFile file;
+  private final Rating rating;
+
+  private final long end;
+  private long ratingsRead;
+
+  private final IDDictionary userIDs;
+  private final IDDictionary itemIDs;
+
+  private ByteBuffer window;
+
+  public BinaryRatingsIterable(File ratings) throws IOException {
+    this(ratings, 0, Long.MAX_VALUE);
+  }
+
+  /**
+   * Iterates over the records with an index in [start, end)
+   */
+  public BinaryRatingsIterable(File ratings, long start, long end) throws IOException {
+    this(ratings, start, end, null, null);
+  }
+
+  /**
+   * Iterates over the records with an index in [start, end), translating the ids with the given dictionaries unless
+   * they are null
+   */
+  public BinaryRatingsIterable(File ratings, long start, long end, IDDictionary userIDs, IDDictionary itemIDs)
+      throws IOException {
+    Preconditions.checkNotNull(ratings);
+    Preconditions.checkArgument(start >= 0 && start <= end);
+    long numRatings = BinaryRatings.readHeader(ratings).numRatings();
+    this.ratingsRead = Math.min(start, numRatings);
+    this.end = Math.min(end, numRatings);
+    this.userIDs = userIDs;
+    this.itemIDs = itemIDs;
+    this.rating = new Rating();
+    this.file = new RandomAccessFile(ratings, "r");
+  }
+
+  @Override
+  public Iterator<Rating> iterator() {
+    return this;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (ratingsRead < end) {
+      return true;
+    }
+    Closeables.closeQuietly(file);
+    return false;
+  }
+
+  @Override
+  public Rating next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    if (window == null || !window.hasRemaining()) {
+      mapNextWindow();
+    }
+    int user = window.getInt();
+    int item = window.getInt();
+    rating.set(userIDs != null ? userIDs.index(user) : user, itemIDs != null ? itemIDs.index(item) : item,
+        window.getFloat());
+    ratingsRead++;
+    return rating;
+  }
+
+  private void mapNextWindow() {
+    long records = Math.min(RECORDS_PER_WINDOW, end - ratingsRead);
+    try {
+      window = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+          BinaryRatings.HEADER_SIZE + ratingsRead * BinaryRatings.RECORD_SIZE, records * BinaryRatings.RECORD_SIZE)
+          .order(BinaryRatings.BYTE_ORDER);
+    } catch (IOException e) {
+      Closeables.closeQuietly(file);
+      throw new IllegalStateException(e);
+    }
+  }
+
+}
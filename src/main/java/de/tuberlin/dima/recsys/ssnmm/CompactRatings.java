@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.UnmodifiableIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Holds a ratings file in memory, grouped by user in compressed sparse row layout: the ratings of user u are found at
+ * the positions userOffsets[u] until userOffsets[u + 1] of the item and rating arrays. Ratings are stored as bytes if
+ * all of them are small integers and as floats otherwise.
+ */
+public class CompactRatings implements Iterable<Rating> {
+
+  private final int[] userOffsets;
+  private final int[] items;
+  private final byte[] byteRatings;
+  private final float[] floatRatings;
+  private final int numItems;
+
+  private CompactRatings(int[] userOffsets, int[] items, byte[] byteRatings, float[] floatRatings, int numItems) {
+    this.userOffsets = userOffsets;
+    this.items = items;
+    this.byteRatings = byteRatings;
+    this.floatRatings = floatRatings;
+    this.numItems = numItems;
+  }
+
+  /**
+   * Loads a ratings file in two passes, the first one counts the ratings per user so that the arrays can be allocated
+   * with their exact size, the second one fills them
+   */
+  public static CompactRatings load(File file) throws IOException {
+    return load(file, null, null);
+  }
+
+  /**
+   * Loads a ratings file, translating the ids with the given dictionaries unless they are null
+   */
+  public static CompactRatings load(File file, IDDictionary userIDs, IDDictionary itemIDs) throws IOException {
+
+    int[] ratingsPerUser = new int[1024];
+    long numRatings = 0;
+    int maxItem = -1;
+    boolean smallIntegers = true;
+
+    for (Rating rating : Utils.readRatings(file, userIDs, itemIDs)) {
+      int user = rating.user();
+      Preconditions.checkState(user >= 0 && rating.item() >= 0, "Negative ids are not supported");
+      if (user >= ratingsPerUser.length) {
+        ratingsPerUser = Arrays.copyOf(ratingsPerUser, Math.max(user + 1, ratingsPerUser.length * 3 / 2));
+      }
+      ratingsPerUser[user]++;
+      maxItem = Math.max(maxItem, rating.item());
+      smallIntegers &= rating.rating() == (byte) rating.rating();
+      numRatings++;
+    }
+
+    Preconditions.checkState(numRatings <= Integer.MAX_VALUE - 8, "Too many ratings to hold in arrays");
+
+    int numUsers = ratingsPerUser.length;
+    while (numUsers > 0 && ratingsPerUser[numUsers - 1] == 0) {
+      numUsers--;
+    }
+
+    int[] userOffsets = new int[numUsers + 1];
+    for (int user = 0; user < numUsers; user++) {
+      userOffsets[user + 1] = userOffsets[user] + ratingsPerUser[user];
+    }
+
+    int[] items = new int[(int) numRatings];
+    byte[] byteRatings = smallIntegers ? new byte[(int) numRatings] : null;
+    float[] floatRatings = smallIntegers ? null : new float[(int) numRatings];
+
+    /* reuse the counts as write positions */
+    int[] positions = ratingsPerUser;
+    System.arraycopy(userOffsets, 0, positions, 0, numUsers);
+
+    for (Rating rating : Utils.readRatings(file, userIDs, itemIDs)) {
+      int position = positions[rating.user()]++;
+      items[position] = rating.item();
+      if (smallIntegers) {
+        byteRatings[position] = (byte) rating.rating();
+      } else {
+        floatRatings[position] = (float) rating.rating();
+      }
+    }
+
+    return new CompactRatings(userOffsets, items, byteRatings, floatRatings, maxItem + 1);
+  }
+
+  /** largest user id plus one */
+  public int numUsers() {
+    return userOffsets.length - 1;
+  }
+
+  /** largest item id plus one */
+  public int numItems() {
+    return numItems;
+  }
+
+  public int numRatings() {
+    return items.length;
+  }
+
+  /** position of the first rating of the user */
+  public int userStart(int user) {
+    return userOffsets[user];
+  }
+
+  /** position after the last rating of the user */
+  public int userEnd(int user) {
+    return userOffsets[user + 1];
+  }
+
+  public int item(int position) {
+    return items[position];
+  }
+
+  public double rating(int position) {
+    return byteRatings != null ? byteRatings[position] : floatRatings[position];
+  }
+
+  /** approximate number of bytes occupied by the arrays */
+  public long sizeInBytes() {
+    long bytesPerRating = byteRatings != null ? 1 : 4;
+    return 4L * userOffsets.length + (4 + bytesPerRating) * items.length;
+  }
+
+  @Override
+  public Iterator<Rating> iterator() {
+    return new RatingsIterator(0, numUsers());
+  }
+
+  /**
+   * Partitions the ratings into ranges of users holding roughly ratingsPerSplit ratings each. The splits only depend
+   * on the data, not on the number of threads reading them.
+   */
+  public List<Iterable<Rating>> splits(int ratingsPerSplit) {
+    Preconditions.checkArgument(ratingsPerSplit > 0);
+    List<Iterable<Rating>> splits = Lists.newArrayList();
+    int fromUser = 0;
+    while (fromUser < numUsers()) {
+      int toUser = fromUser + 1;
+      while (toUser < numUsers() && userOffsets[toUser] - userOffsets[fromUser] < ratingsPerSplit) {
+        toUser++;
+      }
+      final int first = fromUser;
+      final int last = toUser;
+      splits.add(new Iterable<Rating>() {
+        @Override
+        public Iterator<Rating> iterator() {
+          return new RatingsIterator(first, last);
+        }
+      });
+      fromUser = toUser;
+    }
+    return splits;
+  }
+
+  class RatingsIterator extends UnmodifiableIterator<Rating> {
+
+    private final Rating rating = new Rating();
+    private final int toUser;
+    private int user;
+    private int position;
+
+    RatingsIterator(int fromUser, int toUser) {
+      this.user = fromUser;
+      this.toUser = toUser;
+      this.position = userOffsets[fromUser];
+    }
+
+    @Override
+    public boolean hasNext() {
+      return position < userOffsets[toUser];
+    }
+
+    @Override
+    public Rating next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      while (position >= userOffsets[user + 1]) {
+        user++;
+      }
+      rating.set(user, items[position], rating(position));
+      position++;
+      return rating;
+    }
+  }
+}
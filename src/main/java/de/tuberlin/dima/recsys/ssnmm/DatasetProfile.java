@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Iterables;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Metrics;
+import de.tuberlin.dima.recsys.ssnmm.metrics.MetricsReporter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.PhaseTimer;
+import org.apache.mahout.math.list.DoubleArrayList;
+import org.apache.mahout.math.list.LongArrayList;
+import org.apache.mahout.math.map.OpenDoubleLongHashMap;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Statistics of a dataset gathered in a single pass over the training ratings: the number of ratings, the average
+ * rating and a histogram of the rating values, together with dictionaries that map the raw user and item ids to dense
+ * indices. Downstream jobs size their arrays by the dictionaries and read the ratings through them.
+ */
+public class DatasetProfile {
+
+  private static final String PROFILE_FILE = "profile.tsv";
+  private static final String USER_IDS_FILE = "userIDs.bin";
+  private static final String ITEM_IDS_FILE = "itemIDs.bin";
+
+  private static final Pattern SEP = Pattern.compile("\t");
+
+  private final long numRatings;
+  private final double mu;
+  private final double[] ratingValues;
+  private final long[] ratingCounts;
+
+  private final IDDictionary userIDs;
+  private final IDDictionary itemIDs;
+
+  private DatasetProfile(long numRatings, double mu, double[] ratingValues, long[] ratingCounts, IDDictionary userIDs,
+      IDDictionary itemIDs) {
+    this.numRatings = numRatings;
+    this.mu = mu;
+    this.ratingValues = ratingValues;
+    this.ratingCounts = ratingCounts;
+    this.userIDs = userIDs;
+    this.itemIDs = itemIDs;
+  }
+
+  public static void main(String[] args) throws IOException {
+
+    File trainingFile = new File("/home/ssc/Entwicklung/datasets/yahoo-songs/songs.tsv");
+    File holdoutFile = new File("/home/ssc/Entwicklung/datasets/yahoo-songs/holdout.tsv");
+    File profileDir = new File("/home/ssc/Desktop/yahoo/profile/");
+
+    MetricsReporter reporter = Metrics.startReporting("DatasetProfile");
+    try {
+      DatasetProfile profile = profile(trainingFile, holdoutFile);
+      profile.write(profileDir);
+
+      System.out.println(profile);
+    } finally {
+      reporter.stop();
+    }
+  }
+
+  /**
+   * Profiles the training ratings in a single pass. The ids of the additional files (e.g. held out ratings) are added
+   * to the dictionaries, but their ratings do not contribute to the statistics.
+   */
+  public static DatasetProfile profile(File trainingFile, File... additionalFiles) throws IOException {
+
+    IDDictionary users = IDDictionary.growing();
+    IDDictionary items = IDDictionary.growing();
+
+    long numRatings = 0;
+    double sum = 0;
+    OpenDoubleLongHashMap histogram = new OpenDoubleLongHashMap();
+
+    PhaseTimer.Phase phase = Metrics.get().timer("profile.scan").start(Metrics.get().counter("ratings.parsed"));
+    try {
+      for (Rating rating : Utils.readRatings(trainingFile, users, items)) {
+        sum += rating.rating();
+        histogram.adjustOrPutValue(rating.rating(), 1, 1);
+        numRatings++;
+      }
+
+      for (File additionalFile : additionalFiles) {
+        Iterables.size(Utils.readRatings(additionalFile, users, items));
+      }
+    } finally {
+      phase.stop();
+    }
+
+    DoubleArrayList values = new DoubleArrayList();
+    histogram.keys(values);
+    values.sort();
+    double[] ratingValues = new double[values.size()];
+    long[] ratingCounts = new long[values.size()];
+    for (int n = 0; n < ratingValues.length; n++) {
+      ratingValues[n] = values.getQuick(n);
+      ratingCounts[n] = histogram.get(ratingValues[n]);
+    }
+
+    return new DatasetProfile(numRatings, numRatings > 0 ? sum / numRatings : Double.NaN, ratingValues, ratingCounts,
+        users.freeze(), items.freeze());
+  }
+
+  public long numRatings() {
+    return numRatings;
+  }
+
+  public int numUsers() {
+    return userIDs.size();
+  }
+
+  public int numItems() {
+    return itemIDs.size();
+  }
+
+  /** average training rating */
+  public double mu() {
+    return mu;
+  }
+
+  public IDDictionary userIDs() {
+    return userIDs;
+  }
+
+  public IDDictionary itemIDs() {
+    return itemIDs;
+  }
+
+  /** number of training ratings with the given value */
+  public long count(double ratingValue) {
+    for (int n = 0; n < ratingValues.length; n++) {
+      if (ratingValues[n] == ratingValue) {
+        return ratingCounts[n];
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Streams the ratings of a file with dense user and item indices
+   */
+  public Iterable<Rating> readRatings(File file) throws IOException {
+    return Utils.readRatings(file, userIDs, itemIDs);
+  }
+
+  /**
+   * Splits a ratings file into independently readable parts with dense user and item indices
+   */
+  public List<Iterable<Rating>> splitRatings(File file, long splitSize) throws IOException {
+    return Utils.splitRatings(file, splitSize, userIDs, itemIDs);
+  }
+
+  public void write(File dir) throws IOException {
+    Preconditions.checkState(dir.isDirectory() || dir.mkdirs(), "Unable to create " + dir);
+
+    BufferedWriter writer = null;
+    try {
+      writer = Files.newWriter(new File(dir, PROFILE_FILE), Charsets.UTF_8);
+      writer.append("ratings\t").append(String.valueOf(numRatings)).append('\n');
+      writer.append("users\t").append(String.valueOf(numUsers())).append('\n');
+      writer.append("items\t").append(String.valueOf(numItems())).append('\n');
+      writer.append("mu\t").append(String.valueOf(mu)).append('\n');
+      for (int n = 0; n < ratingValues.length; n++) {
+        writer.append("histogram\t").append(String.valueOf(ratingValues[n])).append('\t')
+            .append(String.valueOf(ratingCounts[n])).append('\n');
+      }
+    } finally {
+      Closeables.closeQuietly(writer);
+    }
+
+    userIDs.write(new File(dir, USER_IDS_FILE));
+    itemIDs.write(new File(dir, ITEM_IDS_FILE));
+  }
+
+  public static DatasetProfile read(File dir) throws IOException {
+
+    long numRatings = 0;
+    double mu = Double.NaN;
+    DoubleArrayList values = new DoubleArrayList();
+    LongArrayList counts = new LongArrayList();
+
+    for (String line : Utils.readLines(new File(dir, PROFILE_FILE))) {
+      String[] parts = SEP.split(line);
+      if ("ratings".equals(parts[0])) {
+        numRatings = Long.parseLong(parts[1]);
+      } else if ("mu".equals(parts[0])) {
+        mu = Double.parseDouble(parts[1]);
+      } else if ("histogram".equals(parts[0])) {
+        values.add(Double.parseDouble(parts[1]));
+        counts.add(Long.parseLong(parts[2]));
+      }
+    }
+
+    double[] ratingValues = new double[values.size()];
+    long[] ratingCounts = new long[values.size()];
+    for (int n = 0; n < ratingValues.length; n++) {
+      ratingValues[n] = values.getQuick(n);
+      ratingCounts[n] = counts.getQuick(n);
+    }
+
+    IDDictionary userIDs = IDDictionary.read(new File(dir, USER_IDS_FILE));
+    IDDictionary itemIDs = IDDictionary.read(new File(dir, ITEM_IDS_FILE));
+
+    return new DatasetProfile(numRatings, mu, ratingValues, ratingCounts, userIDs, itemIDs);
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder profile = new StringBuilder();
+    profile.append(numRatings).append(" ratings of ").append(numUsers()).append(" users and ").append(numItems())
+        .append(" items, average rating ").append(mu);
+    for (int n = 0; n < ratingValues.length; n++) {
+      profile.append('\n').append(ratingValues[n]).append('\t').append(ratingCounts[n]);
+    }
+    return profile.toString();
+  }
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Counter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Metrics;
+import de.tuberlin.dima.recsys.ssnmm.metrics.MetricsReporter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.PhaseTimer;
+import org.apache.mahout.math.Sorting;
+import org.apache.mahout.math.Swapper;
+import org.apache.mahout.math.function.IntComparator;
+import org.apache.mahout.math.list.IntArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts ratings files of arbitrary size by user and item with bounded memory, so that the ratings of every user are
+ * grouped in ascending order of the users, as the streaming evaluation expects. The ratings are buffered until the
+ * memory budget is used up, every full buffer is sorted and spilled to a temporary run file, and the runs are merged
+ * into the output in a k-way merge. The output can be partitioned into files that hold ascending, disjoint ranges of
+ * users.
+ *
+ * The raw ids are kept and need to fit into an int, like when reading ratings without dictionaries. As the
+ * dictionaries of a {@link DatasetProfile} order the users by their raw ids, the dense user indices are ascending too.
+ */
+public class ExternalSort {
+
+  /** memory per buffered rating: user, item and rating */
+  private static final int BYTES_PER_RATING = 16;
+  /** more runs are merged in several passes, which bounds the number of open files */
+  private static final int MAX_RUNS_PER_MERGE = 64;
+  private static final int IO_BUFFER_SIZE = 1 << 16;
+
+  private final File tempDir;
+  private final int ratingsPerRun;
+
+  private final Counter spilledRatings = Metrics.get().counter("sort.spilledRatings");
+
+  /**
+   * Spills runs of at most memoryBudget bytes into tempDir
+   */
+  public ExternalSort(File tempDir, long memoryBudget) {
+    Preconditions.checkArgument(tempDir.isDirectory(), "Not a directory: " + tempDir);
+    Preconditions.checkArgument(memoryBudget >= BYTES_PER_RATING);
+    this.tempDir = tempDir;
+    ratingsPerRun = (int) Math.min(Integer.MAX_VALUE - 8, memoryBudget / BYTES_PER_RATING);
+  }
+
+  public static void main(String[] args) throws IOException {
+
+    File trainingFile = new File("/home/ssc/Entwicklung/datasets/yahoo-songs/songs.tsv");
+    File holdoutFile = new File("/home/ssc/Entwicklung/datasets/yahoo-songs/holdout.tsv");
+    File outputDir = new File("/home/ssc/Desktop/yahoo/sorted/");
+    File tempDir = new File("/tmp/");
+
+    long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+    int numPartitions = 1;
+
+    List<File> trainingPartitions = Lists.newArrayList();
+    List<File> holdoutPartitions = Lists.newArrayList();
+    for (int partition = 0; partition < numPartitions; partition++) {
+      trainingPartitions.add(new File(outputDir, String.format("songs-%05d.tsv", partition)));
+      holdoutPartitions.add(new File(outputDir, String.format("holdout-%05d.tsv", partition)));
+    }
+
+    MetricsReporter reporter = Metrics.startReporting("ExternalSort");
+    try {
+      ExternalSort sort = new ExternalSort(tempDir, memoryBudget);
+
+      System.out.println("Sorting training ratings...");
+      int[] boundaries = sort.sort(trainingFile, trainingPartitions);
+      System.out.println("Partitioned the users at " + Arrays.toString(boundaries));
+
+      System.out.println("Sorting held out ratings...");
+      sort.sort(holdoutFile, holdoutPartitions, boundaries);
+    } finally {
+      reporter.stop();
+    }
+  }
+
+  /**
+   * Sorts the ratings into the given partitions, which receive roughly equal numbers of ratings. The ratings of a user
+   * never span two partitions.
+   *
+   * @return the first user of every partition except the first one, to partition other files in the same way
+   */
+  public int[] sort(File ratings, List<File> partitions) throws IOException {
+    return sortInto(ratings, partitions, null);
+  }
+
+  /**
+   * Sorts the ratings into the given partitions, the n-th partition receives the users from boundaries[n - 1]
+   * (inclusive) to boundaries[n] (exclusive)
+   */
+  public void sort(File ratings, List<File> partitions, int[] boundaries) throws IOException {
+    Preconditions.checkNotNull(boundaries);
+    Preconditions.checkArgument(boundaries.length == partitions.size() - 1,
+        "Need one boundary less than partitions");
+    for (int n = 1; n < boundaries.length; n++) {
+      Preconditions.checkArgument(boundaries[n - 1] <= boundaries[n], "Boundaries must be ascending");
+    }
+    sortInto(ratings, partitions, boundaries);
+  }
+
+  private int[] sortInto(File ratings, List<File> partitions, int[] boundaries) throws IOException {
+    Preconditions.checkArgument(!partitions.isEmpty());
+
+    List<File> runFiles = Lists.newArrayList();
+    try {
+      RunBuffer buffer = new RunBuffer(ratingsPerRun);
+      long numRatings = 0;
+
+      PhaseTimer.Phase phase = Metrics.get().timer("sort.runs").start(Metrics.get().counter("ratings.parsed"));
+      try {
+        for (Rating rating : Utils.readRatings(ratings)) {
+          if (buffer.isFull()) {
+            runFiles.add(spill(buffer));
+          }
+          buffer.add(rating);
+          numRatings++;
+        }
+        if (!runFiles.isEmpty()) {
+          runFiles.add(spill(buffer));
+          buffer = null;
+        } else {
+          buffer.sort();
+        }
+      } finally {
+        phase.stop();
+      }
+
+      phase = Metrics.get().timer("sort.merge").start();
+      try {
+        while (runFiles.size() > MAX_RUNS_PER_MERGE) {
+          List<File> merged = Lists.newArrayList(runFiles.subList(0, MAX_RUNS_PER_MERGE));
+          runFiles.add(mergeRuns(merged));
+          runFiles.removeAll(merged);
+          delete(merged);
+        }
+
+        List<Run> runs = Lists.newArrayList();
+        PartitionWriter writer = new PartitionWriter(partitions, boundaries, numRatings);
+        try {
+          if (buffer != null) {
+            runs.add(new BufferRun(buffer));
+          } else {
+            for (File runFile : runFiles) {
+              runs.add(new FileRun(runFile));
+            }
+          }
+          merge(runs, writer);
+        } finally {
+          for (Run run : runs) {
+            run.close();
+          }
+          writer.close();
+        }
+        return writer.boundaries();
+      } finally {
+        phase.stop();
+      }
+
+    } finally {
+      delete(runFiles);
+    }
+  }
+
+  /**
+   * Sorts the buffered ratings, writes them to a new run file and empties the buffer
+   */
+  private File spill(RunBuffer buffer) throws IOException {
+    buffer.sort();
+    File runFile = File.createTempFile("ratings-run-", ".bin", tempDir);
+    RunWriter writer = new RunWriter(runFile, buffer.size());
+    try {
+      for (int n = 0; n < buffer.size(); n++) {
+        writer.write(buffer.users[n], buffer.items[n], buffer.ratings[n]);
+      }
+    } finally {
+      writer.close();
+    }
+    spilledRatings.add(buffer.size());
+    buffer.clear();
+    return runFile;
+  }
+
+  /**
+   * Merges the given run files into a new one
+   */
+  private File mergeRuns(List<File> runFiles) throws IOException {
+    List<Run> runs = Lists.newArrayList();
+    RunWriter writer = null;
+    try {
+      long numRatings = 0;
+      for (File runFile : runFiles) {
+        FileRun run = new FileRun(runFile);
+        runs.add(run);
+        numRatings += run.remaining;
+      }
+      File mergedFile = File.createTempFile("ratings-run-", ".bin", tempDir);
+      writer = new RunWriter(mergedFile, numRatings);
+      merge(runs, writer);
+      return mergedFile;
+    } finally {
+      for (Run run : runs) {
+        run.close();
+      }
+      if (writer != null) {
+        writer.close();
+      }
+    }
+  }
+
+  private static void merge(List<Run> runs, Sink sink) throws IOException {
+    PriorityQueue<Run> queue = new PriorityQueue<Run>(Math.max(1, runs.size()), RUN_ORDER);
+    for (Run run : runs) {
+      if (run.advance()) {
+        queue.add(run);
+      }
+    }
+    while (!queue.isEmpty()) {
+      Run run = queue.poll();
+      sink.write(run.user, run.item, run.rating);
+      if (run.advance()) {
+        queue.add(run);
+      }
+    }
+  }
+
+  private static void delete(List<File> files) {
+    for (File file : files) {
+      if (file.exists() && !file.delete()) {
+        file.deleteOnExit();
+      }
+    }
+  }
+
+  private static int compare(int user, int item, int otherUser, int otherItem) {
+    if (user != otherUser) {
+      return user < otherUser ? -1 : 1;
+    }
+    return item < otherItem ? -1 : (item == otherItem ? 0 : 1);
+  }
+
+  private static final Comparator<Run> RUN_ORDER = new Comparator<Run>() {
+    @Override
+    public int compare(Run one, Run other) {
+      return ExternalSort.compare(one.user, one.item, other.user, other.item);
+    }
+  };
+
+  /**
+   * Ratings held in parallel arrays that grow up to the capacity and are sorted in place
+   */
+  static class RunBuffer implements IntComparator, Swapper {
+
+    private final int capacity;
+    private int[] users;
+    private int[] items;
+    private double[] ratings;
+    private int size;
+
+    RunBuffer(int capacity) {
+      this.capacity = capacity;
+      int initialCapacity = Math.min(capacity, 1 << 16);
+      users = new int[initialCapacity];
+      items = new int[initialCapacity];
+      ratings = new double[initialCapacity];
+    }
+
+    int size() {
+      return size;
+    }
+
+    boolean isFull() {
+      return size == capacity;
+    }
+
+    void add(Rating rating) {
+      if (size == users.length) {
+        int grownCapacity = (int) Math.min(capacity, 2L * users.length);
+        users = Arrays.copyOf(users, grownCapacity);
+        items = Arrays.copyOf(items, grownCapacity);
+        ratings = Arrays.copyOf(ratings, grownCapacity);
+      }
+      users[size] = rating.user();
+      items[size] = rating.item();
+      ratings[size] = rating.rating();
+      size++;
+    }
+
+    void sort() {
+      Sorting.quickSort(0, size, this, this);
+    }
+
+    void clear() {
+      size = 0;
+    }
+
+    @Override
+    public int compare(int a, int b) {
+      return ExternalSort.compare(users[a], items[a], users[b], items[b]);
+    }
+
+    @Override
+    public void swap(int a, int b) {
+      int user = users[a];
+      users[a] = users[b];
+      users[b] = user;
+      int item = items[a];
+      items[a] = items[b];
+      items[b] = item;
+      double rating = ratings[a];
+      ratings[a] = ratings[b];
+      ratings[b] = rating;
+    }
+  }
+
+  /**
+   * A sorted sequence of ratings, positioned on its current rating by advance()
+   */
+  abstract static class Run {
+
+    int user;
+    int item;
+    double rating;
+
+    abstract boolean advance() throws IOException;
+
+    void close() {}
+  }
+
+  static class BufferRun extends Run {
+
+    private final RunBuffer buffer;
+    private int next;
+
+    BufferRun(RunBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    boolean advance() {
+      if (next == buffer.size()) {
+        return false;
+      }
+      user = buffer.users[next];
+      item = buffer.items[next];
+      rating = buffer.ratings[next];
+      next++;
+      return true;
+    }
+  }
+
+  /**
+   * Reads a run file, which starts with the number of ratings it holds
+   */
+  static class FileRun extends Run {
+
+    private final DataInputStream in;
+    private long remaining;
+
+    FileRun(File runFile) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), IO_BUFFER_SIZE));
+      remaining = in.readLong();
+    }
+
+    @Override
+    boolean advance() throws IOException {
+      if (remaining == 0) {
+        return false;
+      }
+      user = in.readInt();
+      item = in.readInt();
+      rating = in.readDouble();
+      remaining--;
+      return true;
+    }
+
+    @Override
+    void close() {
+      Closeables.closeQuietly(in);
+    }
+  }
+
+  interface Sink {
+    void write(int user, int item, double rating) throws IOException;
+  }
+
+  static class RunWriter implements Sink {
+
+    private final DataOutputStream out;
+
+    RunWriter(File runFile, long numRatings) throws IOException {
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), IO_BUFFER_SIZE));
+      out.writeLong(numRatings);
+    }
+
+    @Override
+    public void write(int user, int item, double rating) throws IOException {
+      out.writeInt(user);
+      out.writeInt(item);
+      out.writeDouble(rating);
+    }
+
+    void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the sorted ratings as text into the partitions, which are switched at the given boundaries or, without
+   * boundaries, at the first user change after a partition received its share of the ratings
+   */
+  static class PartitionWriter implements Sink {
+
+    private final List<File> partitions;
+    private final int[] boundaries;
+    private final long numRatings;
+    private final IntArrayList chosenBoundaries = new IntArrayList();
+
+    private int partition;
+    private BufferedWriter writer;
+    private long written;
+    private boolean started;
+    private int currentUser;
+
+    PartitionWriter(List<File> partitions, int[] boundaries, long numRatings) throws IOException {
+      this.partitions = partitions;
+      this.boundaries = boundaries;
+      this.numRatings = numRatings;
+      writer = Files.newWriter(partitions.get(0), Charsets.UTF_8);
+    }
+
+    @Override
+    public void write(int user, int item, double rating) throws IOException {
+      if (!started || user != currentUser) {
+        if (boundaries != null) {
+          while (partition < boundaries.length && user >= boundaries[partition]) {
+            nextPartition(user);
+          }
+        } else if (started && partition < partitions.size() - 1 &&
+            written >= numRatings * (partition + 1) / partitions.size()) {
+          nextPartition(user);
+        }
+        started = true;
+        currentUser = user;
+      }
+      writer.write(String.valueOf(user));
+      writer.write('\t');
+      writer.write(String.valueOf(item));
+      writer.write('\t');
+      writer.write(format(rating));
+      writer.write('\n');
+      written++;
+    }
+
+    private void nextPartition(int firstUser) throws IOException {
+      writer.close();
+      partition++;
+      chosenBoundaries.add(firstUser);
+      writer = Files.newWriter(partitions.get(partition), Charsets.UTF_8);
+    }
+
+    /**
+     * Closes the current partition and creates the remaining, empty ones
+     */
+    void close() throws IOException {
+      int firstUnusedUser = started ? currentUser + 1 : 0;
+      while (partition < partitions.size() - 1) {
+        nextPartition(boundaries != null ? boundaries[partition] : firstUnusedUser);
+      }
+      writer.close();
+    }
+
+    int[] boundaries() {
+      if (boundaries != null) {
+        return boundaries.clone();
+      }
+      return Arrays.copyOf(chosenBoundaries.elements(), chosenBoundaries.size());
+    }
+
+    /** whole numbers are written without a fraction, like the ratings of the original datasets */
+    private static String format(double rating) {
+      if (rating == Math.rint(rating) && Math.abs(rating) < 1.0e15) {
+        return String.valueOf((long) rating);
+      }
+      return String.valueOf(rating);
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Maps sparse or large raw ids to the dense indices 0 until size(). A dictionary is either growing, assigning the next
+ * free index to every unseen id, or frozen, in which case the indices follow the ascending order of the raw ids and
+ * unknown ids are rejected.
+ */
+public class IDDictionary {
+
+  /** holds index + 1 per id, as the map answers 0 for absent keys */
+  private final OpenLongIntHashMap indices;
+  private long[] ids;
+  private int size;
+  private final boolean frozen;
+
+  private IDDictionary(long[] ids, int size, boolean frozen) {
+    this.ids = ids;
+    this.size = size;
+    this.frozen = frozen;
+    indices = new OpenLongIntHashMap(Math.max(size, 16));
+    for (int index = 0; index < size; index++) {
+      indices.put(ids[index], index + 1);
+    }
+  }
+
+  /**
+   * Creates an empty dictionary that assigns indices to unseen ids
+   */
+  public static IDDictionary growing() {
+    return new IDDictionary(new long[1024], 0, false);
+  }
+
+  /**
+   * Creates a frozen dictionary whose indices follow the ascending order of the given ids
+   */
+  public static IDDictionary frozen(long[] ids) {
+    long[] sortedIDs = ids.clone();
+    Arrays.sort(sortedIDs);
+    for (int index = 1; index < sortedIDs.length; index++) {
+      Preconditions.checkArgument(sortedIDs[index - 1] != sortedIDs[index], "Duplicate id " + sortedIDs[index]);
+    }
+    return new IDDictionary(sortedIDs, sortedIDs.length, true);
+  }
+
+  /**
+   * Creates a frozen dictionary that keeps the given order of the ids, as read back from a model that was written with
+   * the indices of another dictionary
+   */
+  static IDDictionary frozenInOrder(long[] ids) {
+    IDDictionary dictionary = new IDDictionary(ids, ids.length, true);
+    Preconditions.checkArgument(dictionary.indices.size() == ids.length, "Duplicate ids");
+    return dictionary;
+  }
+
+  /**
+   * Turns the ids seen so far into a frozen dictionary
+   */
+  public IDDictionary freeze() {
+    return frozen(Arrays.copyOf(ids, size));
+  }
+
+  /**
+   * Returns the dense index of an id
+   *
+   * @throws IllegalArgumentException if the id is unknown to a frozen dictionary
+   */
+  public int index(long id) {
+    int index = indices.get(id) - 1;
+    if (index < 0) {
+      Preconditions.checkArgument(!frozen, "Unknown id " + id);
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+      }
+      ids[size] = id;
+      index = size++;
+      indices.put(id, index + 1);
+    }
+    return index;
+  }
+
+  public boolean contains(long id) {
+    return indices.containsKey(id);
+  }
+
+  /** raw id of a dense index */
+  public long id(int index) {
+    Preconditions.checkElementIndex(index, size);
+    return ids[index];
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void write(File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(size);
+      for (int index = 0; index < size; index++) {
+        out.writeLong(ids[index]);
+      }
+    } finally {
+      Closeables.closeQuietly(out);
+    }
+  }
+
+  /**
+   * Reads a dictionary written by {@link #write(File)}, the result is frozen
+   */
+  public static IDDictionary read(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      long[] ids = new long[in.readInt()];
+      for (int index = 0; index < ids.length; index++) {
+        ids[index] = in.readLong();
+      }
+      return frozen(ids);
+    } finally {
+      Closeables.closeQuietly(in);
+    }
+  }
+
+}
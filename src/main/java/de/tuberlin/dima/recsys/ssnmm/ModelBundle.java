@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Everything a scoring job needs in a single binary file: the average rating, the user and item biases, the
+ * similarity matrix and optionally the dictionaries of the raw ids. The file is read through a memory mapping without
+ * copying the arrays, so several processes reading the same bundle share it through the page cache.
+ *
+ * The file starts with a header of 48 bytes (magic, version, flags, number of users, items and similarities, mu, a
+ * CRC32 checksum of everything after the header and the file size), followed by the user biases, the item biases, the
+ * similarity matrix and the ids of the users and items. All values are little-endian, the arrays of doubles and longs
+ * start at multiples of 8 bytes.
+ */
+public class ModelBundle {
+
+  private static final int MAGIC = 0x4d424e44;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 48;
+  private static final int CHECKSUM_OFFSET = 32;
+
+  private static final int FLAG_DICTIONARIES = 1;
+
+  private final double mu;
+  private final int numUsers;
+  private final int numItems;
+  private final DoubleBuffer userBiases;
+  private final DoubleBuffer itemBiases;
+  private final SimilarityMatrix similarities;
+  private final LongBuffer userIDs;
+  private final LongBuffer itemIDs;
+
+  private ModelBundle(double mu, int numUsers, int numItems, DoubleBuffer userBiases, DoubleBuffer itemBiases,
+      SimilarityMatrix similarities, LongBuffer userIDs, LongBuffer itemIDs) {
+    this.mu = mu;
+    this.numUsers = numUsers;
+    this.numItems = numItems;
+    this.userBiases = userBiases;
+    this.itemBiases = itemBiases;
+    this.similarities = similarities;
+    this.userIDs = userIDs;
+    this.itemIDs = itemIDs;
+  }
+
+  /**
+   * Writes a bundle, the dictionaries may be null. The bundle is written to a temporary file that is renamed at the
+   * end, so processes that still map a previous bundle of the same name keep reading consistent data.
+   */
+  public static void write(File file, double mu, double[] userBiases, double[] itemBiases,
+      SimilarityMatrix similarities, IDDictionary userIDs, IDDictionary itemIDs) throws IOException {
+
+    int numUsers = userBiases.length;
+    int numItems = itemBiases.length;
+    Preconditions.checkArgument(similarities.numRows() == numItems, "The similarity matrix must have a row per item");
+    boolean withDictionaries = userIDs != null && itemIDs != null;
+    if (withDictionaries) {
+      Preconditions.checkArgument(userIDs.size() == numUsers && itemIDs.size() == numItems,
+          "The dictionaries must match the biases");
+    }
+
+    long size = dictionariesOffset(numUsers, numItems, similarities.numSimilarities()) +
+        (withDictionaries ? 8L * (numUsers + numItems) : 0);
+    Preconditions.checkArgument(size <= Integer.MAX_VALUE, "The model is too large to be mapped");
+
+    File tempFile = new File(file.getPath() + ".tmp");
+    RandomAccessFile out = new RandomAccessFile(tempFile, "rw");
+    try {
+      out.setLength(size);
+      MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putInt(MAGIC);
+      buffer.putInt(VERSION);
+      buffer.putInt(withDictionaries ? FLAG_DICTIONARIES : 0);
+      buffer.putInt(numUsers);
+      buffer.putInt(numItems);
+      buffer.putInt(similarities.numSimilarities());
+      buffer.putDouble(mu);
+      buffer.putLong(0);
+      buffer.putLong(size);
+
+      buffer.asDoubleBuffer().put(userBiases);
+      buffer.position(buffer.position() + 8 * numUsers);
+      buffer.asDoubleBuffer().put(itemBiases);
+      buffer.position(buffer.position() + 8 * numItems);
+      similarities.writeTo(buffer);
+
+      if (withDictionaries) {
+        buffer.position((int) dictionariesOffset(numUsers, numItems, similarities.numSimilarities()));
+        LongBuffer ids = buffer.asLongBuffer();
+        for (int user = 0; user < numUsers; user++) {
+          ids.put(userIDs.id(user));
+        }
+        for (int item = 0; item < numItems; item++) {
+          ids.put(itemIDs.id(item));
+        }
+      }
+
+      buffer.putLong(CHECKSUM_OFFSET, checksum(buffer));
+      buffer.force();
+    } finally {
+      Closeables.closeQuietly(out);
+    }
+
+    /* the rename replaces an existing file in one step on POSIX systems, elsewhere the old file is deleted first */
+    if (!tempFile.renameTo(file)) {
+      Preconditions.checkState(file.delete() && tempFile.renameTo(file), "Unable to move " + tempFile + " to " + file);
+    }
+  }
+
+  /** the ids follow the similarity matrix, padded to a multiple of 8 bytes */
+  private static long dictionariesOffset(int numUsers, int numItems, int numSimilarities) {
+    long offset = HEADER_SIZE + 8L * (numUsers + numItems) + 4L * (numItems + 1) + 8L * numSimilarities;
+    return (offset + 7) & ~7L;
+  }
+
+  private static long checksum(ByteBuffer buffer) {
+    ByteBuffer body = buffer.duplicate();
+    body.position(HEADER_SIZE);
+    body.limit(buffer.capacity());
+    CRC32 crc = new CRC32();
+    byte[] chunk = new byte[64 * 1024];
+    while (body.hasRemaining()) {
+      int length = Math.min(chunk.length, body.remaining());
+      body.get(chunk, 0, length);
+      crc.update(chunk, 0, length);
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Maps a bundle and verifies its checksum
+   */
+  public static ModelBundle open(File file) throws IOException {
+    return open(file, true);
+  }
+
+  /**
+   * Maps a bundle, verifying the checksum reads the whole file once
+   */
+  public static ModelBundle open(File file, boolean verifyChecksum) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      Preconditions.checkState(in.length() >= HEADER_SIZE, file + " is not a model bundle");
+      ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      Preconditions.checkState(buffer.getInt() == MAGIC, file + " is not a model bundle");
+      int version = buffer.getInt();
+      Preconditions.checkState(version == VERSION, "Unsupported version " + version + " of " + file);
+      int flags = buffer.getInt();
+      int numUsers = buffer.getInt();
+      int numItems = buffer.getInt();
+      int numSimilarities = buffer.getInt();
+      double mu = buffer.getDouble();
+      long checksum = buffer.getLong();
+      long size = buffer.getLong();
+      Preconditions.checkState(size == in.length(), file + " is truncated");
+      if (verifyChecksum) {
+        Preconditions.checkState(checksum(buffer) == checksum, "Checksum mismatch in " + file);
+      }
+
+      DoubleBuffer userBiases = buffer.asDoubleBuffer();
+      userBiases.limit(numUsers);
+      buffer.position(buffer.position() + 8 * numUsers);
+      DoubleBuffer itemBiases = buffer.asDoubleBuffer();
+      itemBiases.limit(numItems);
+      buffer.position(buffer.position() + 8 * numItems);
+      SimilarityMatrix similarities = SimilarityMatrix.readFrom(buffer, numItems, numSimilarities);
+
+      LongBuffer userIDs = null;
+      LongBuffer itemIDs = null;
+      if ((flags & FLAG_DICTIONARIES) != 0) {
+        buffer.position((int) dictionariesOffset(numUsers, numItems, numSimilarities));
+        userIDs = buffer.asLongBuffer();
+        userIDs.limit(numUsers);
+        buffer.position(buffer.position() + 8 * numUsers);
+        itemIDs = buffer.asLongBuffer();
+        itemIDs.limit(numItems);
+      }
+
+      return new ModelBundle(mu, numUsers, numItems, userBiases.slice(), itemBiases.slice(), similarities,
+          userIDs != null ? userIDs.slice() : null, itemIDs != null ? itemIDs.slice() : null);
+    } finally {
+      Closeables.closeQuietly(in);
+    }
+  }
+
+  /** average training rating */
+  public double mu() {
+    return mu;
+  }
+
+  public int numUsers() {
+    return numUsers;
+  }
+
+  public int numItems() {
+    return numItems;
+  }
+
+  public double userBias(int user) {
+    return userBiases.get(user);
+  }
+
+  public double itemBias(int item) {
+    return itemBiases.get(item);
+  }
+
+  /** read-only view on the user biases, indexed by user */
+  public DoubleBuffer userBiases() {
+    return userBiases.asReadOnlyBuffer();
+  }
+
+  /** read-only view on the item biases, indexed by item */
+  public DoubleBuffer itemBiases() {
+    return itemBiases.asReadOnlyBuffer();
+  }
+
+  public SimilarityMatrix similarities() {
+    return similarities;
+  }
+
+  public boolean hasDictionaries() {
+    return userIDs != null;
+  }
+
+  /** builds a frozen dictionary of the stored user ids, which takes time proportional to the number of users */
+  public IDDictionary userIDs() {
+    Preconditions.checkState(hasDictionaries(), "The bundle holds no dictionaries");
+    return dictionary(userIDs);
+  }
+
+  /** builds a frozen dictionary of the stored item ids, which takes time proportional to the number of items */
+  public IDDictionary itemIDs() {
+    Preconditions.checkState(hasDictionaries(), "The bundle holds no dictionaries");
+    return dictionary(itemIDs);
+  }
+
+  private static IDDictionary dictionary(LongBuffer ids) {
+    long[] copy = new long[ids.capacity()];
+    ids.duplicate().get(copy);
+    return IDDictionary.frozenInOrder(copy);
+  }
+}
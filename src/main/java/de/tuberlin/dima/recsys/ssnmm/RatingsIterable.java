@@ -13,29 +13,110 @@
 
 package de.tuberlin.dima.recsys.ssnmm;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.UnmodifiableIterator;
-import org.apache.mahout.common.iterator.FileLineIterator;
+import com.google.common.io.Closeables;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Counter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Metrics;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Iterator;
-import java.util.regex.Pattern;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
 
 /**
- * A class to iterate over a ratings file in a streaming manner
+ * A class to iterate over a ratings file in a streaming manner, the fields are decoded directly from the bytes of the
+ * file into the reused {@link Rating} so that no objects are created per line.
+ *
+ * The iteration can be restricted to a byte range of the file, in that case exactly the lines starting inside the
+ * range are returned, so that adjacent ranges partition the file. Raw ids can optionally be translated to dense
+ * indices by {@link IDDictionary}s.
  */
 public class RatingsIterable extends UnmodifiableIterator<Rating> implements Iterable<Rating> {
 
-  private Iterator<String> lines;
+  private static final int BUFFER_SIZE = 1 << 22;
+
+  /** powers of ten that are exactly representable as double */
+  private static final double[] POWERS_OF_TEN = new double[23];
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int n = 1; n < POWERS_OF_TEN.length; n++) {
+      POWERS_OF_TEN[n] = POWERS_OF_TEN[n - 1] * 10;
+    }
+  }
+
+  /** largest mantissa that can be converted to double without rounding */
+  private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+  /** time spent waiting for reads from the file (and decompressing it), summed over all threads */
+  private static final Counter IO_NANOS = Metrics.get().counter("ratings.ioNanos");
+  private static final Counter BYTES_READ = Metrics.get().counter("ratings.bytesRead");
+  private static final Counter RATINGS_PARSED = Metrics.get().counter("ratings.parsed");
+
+  private final ReadableByteChannel channel;
+  private final ByteBuffer buffer;
   private final Rating rating;
 
-  private static final Pattern SEP = Pattern.compile("[,\t]");
+  private final long end;
+  private boolean skipPartialLine;
+
+  private final IDDictionary userIDs;
+  private final IDDictionary itemIDs;
+
+  /** offset of the first buffered byte in the file */
+  private long bufferOffset;
+
+  private boolean endOfInput;
+  private int lineEnd;
+  private int pos;
+
+  /** ratings parsed since the last read, added to the shared counter once per read */
+  private long parsed;
 
   public RatingsIterable(File ratings) throws IOException {
+    this(ratings, 0, Long.MAX_VALUE);
+  }
+
+  /**
+   * Iterates over the lines that start at a byte offset in [start, end)
+   */
+  public RatingsIterable(File ratings, long start, long end) throws IOException {
+    this(ratings, start, end, null, null);
+  }
+
+  /**
+   * Iterates over the lines that start at a byte offset in [start, end), translating the ids with the given
+   * dictionaries unless they are null
+   */
+  public RatingsIterable(File ratings, long start, long end, IDDictionary userIDs, IDDictionary itemIDs)
+      throws IOException {
     Preconditions.checkNotNull(ratings);
+    Preconditions.checkArgument(start >= 0 && start <= end);
     this.rating = new Rating();
-    this.lines = new FileLineIterator(ratings);
+    this.channel = open(ratings, start);
+    this.end = end;
+    this.userIDs = userIDs;
+    this.itemIDs = itemIDs;
+    this.skipPartialLine = start > 0;
+    this.bufferOffset = Math.max(0, start - 1);
+    this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    buffer.flip();
+  }
+
+  private static ReadableByteChannel open(File ratings, long start) throws IOException {
+    FileInputStream in = new FileInputStream(ratings);
+    if (ratings.getName().endsWith(".gz")) {
+      Preconditions.checkArgument(start == 0, "Compressed files cannot be split");
+      return Channels.newChannel(new GZIPInputStream(in, BUFFER_SIZE));
+    }
+    /* start reading one byte early to see whether a line begins exactly at start */
+    return in.getChannel().position(Math.max(0, start - 1));
   }
 
   @Override
@@ -45,19 +126,222 @@ public class RatingsIterable extends UnmodifiableIterator<Rating> implements Ite
 
   @Override
   public boolean hasNext() {
-    return lines.hasNext();
+    if (skipPartialLine) {
+      findLineEnd();
+      buffer.position(Math.min(lineEnd + 1, buffer.limit()));
+      skipPartialLine = false;
+    }
+    while (true) {
+      while (buffer.hasRemaining()) {
+        byte current = buffer.get(buffer.position());
+        if (current != '\n' && current != '\r') {
+          if (bufferOffset + buffer.position() < end) {
+            return true;
+          }
+          endOfInput = true;
+          Closeables.closeQuietly(channel);
+          buffer.position(buffer.limit());
+          countParsed();
+          return false;
+        }
+        buffer.position(buffer.position() + 1);
+      }
+      if (!fill()) {
+        return false;
+      }
+    }
   }
 
   @Override
   public Rating next() {
-    String[] parts = SEP.split(lines.next());
-    int user = Integer.parseInt(parts[0]);
-    int item = Integer.parseInt(parts[1]);
-    double value = Double.parseDouble(parts[2]);
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    findLineEnd();
+
+    pos = buffer.position();
+    long rawUser = parseLong();
+    skipSeparator();
+    long rawItem = parseLong();
+    skipSeparator();
+    double value = parseDouble();
+
+    int user = userIDs != null ? userIDs.index(rawUser) : toInt(rawUser);
+    int item = itemIDs != null ? itemIDs.index(rawItem) : toInt(rawItem);
+
+    buffer.position(lineEnd);
 
     rating.set(user, item, value);
+    parsed++;
 
     return rating;
   }
 
-}
\ No newline at end of file
+  /**
+   * Locates the end of the current line, reads more data if the line is not completely buffered yet
+   */
+  private void findLineEnd() {
+    int scanned = buffer.position();
+    while (true) {
+      int limit = buffer.limit();
+      for (int index = scanned; index < limit; index++) {
+        if (buffer.get(index) == '\n') {
+          lineEnd = index;
+          return;
+        }
+      }
+      int lineLength = limit - buffer.position();
+      if (!fill()) {
+        lineEnd = buffer.limit();
+        return;
+      }
+      scanned = buffer.position() + lineLength;
+    }
+  }
+
+  /**
+   * Moves the unread bytes to the front of the buffer and appends data from the channel
+   *
+   * @return false if no more data is available
+   */
+  private boolean fill() {
+    if (endOfInput) {
+      return false;
+    }
+    bufferOffset += buffer.position();
+    buffer.compact();
+    countParsed();
+    try {
+      Preconditions.checkState(buffer.hasRemaining(), "Line exceeds " + BUFFER_SIZE + " bytes");
+      long start = System.nanoTime();
+      int read;
+      do {
+        read = channel.read(buffer);
+      } while (read == 0);
+      IO_NANOS.add(System.nanoTime() - start);
+      buffer.flip();
+      if (read == -1) {
+        endOfInput = true;
+        Closeables.closeQuietly(channel);
+        return false;
+      }
+      BYTES_READ.add(read);
+      return true;
+    } catch (IOException e) {
+      Closeables.closeQuietly(channel);
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private void countParsed() {
+    RATINGS_PARSED.add(parsed);
+    parsed = 0;
+  }
+
+  private void skipSeparator() {
+    if (pos >= lineEnd || (buffer.get(pos) != '\t' && buffer.get(pos) != ',')) {
+      throw invalidLine();
+    }
+    pos++;
+  }
+
+  private long parseLong() {
+    boolean negative = false;
+    if (pos < lineEnd && buffer.get(pos) == '-') {
+      negative = true;
+      pos++;
+    }
+    int start = pos;
+    long value = 0;
+    while (pos < lineEnd) {
+      int digit = buffer.get(pos) - '0';
+      if (digit < 0 || digit > 9) {
+        break;
+      }
+      value = value * 10 + digit;
+      pos++;
+    }
+    if (pos == start || pos - start > 18) {
+      throw invalidLine();
+    }
+    return negative ? -value : value;
+  }
+
+  private int toInt(long value) {
+    if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+      throw invalidLine();
+    }
+    return (int) value;
+  }
+
+  /**
+   * Decodes plain decimal numbers directly, everything else (exponents, NaN, very long numbers) is handed
+   * to {@link Double#parseDouble(String)}
+   */
+  private double parseDouble() {
+    int start = pos;
+    boolean negative = false;
+    if (pos < lineEnd && (buffer.get(pos) == '-' || buffer.get(pos) == '+')) {
+      negative = buffer.get(pos) == '-';
+      pos++;
+    }
+    long mantissa = 0;
+    int digits = 0;
+    int fractionDigits = -1;
+    while (pos < lineEnd) {
+      byte current = buffer.get(pos);
+      if (current >= '0' && current <= '9') {
+        mantissa = mantissa * 10 + (current - '0');
+        digits++;
+        if (fractionDigits >= 0) {
+          fractionDigits++;
+        }
+      } else if (current == '.' && fractionDigits < 0) {
+        fractionDigits = 0;
+      } else {
+        break;
+      }
+      pos++;
+    }
+
+    int end = pos;
+    while (end < lineEnd && buffer.get(end) != '\t' && buffer.get(end) != ',') {
+      end++;
+    }
+    boolean plainDecimal = digits > 0 && digits <= 18 && mantissa < MAX_EXACT_MANTISSA
+        && fractionDigits < POWERS_OF_TEN.length && isBlank(pos, end);
+
+    if (!plainDecimal) {
+      return parseDoubleSlowly(start, end);
+    }
+
+    double value = fractionDigits > 0 ? mantissa / POWERS_OF_TEN[fractionDigits] : mantissa;
+    return negative ? -value : value;
+  }
+
+  private boolean isBlank(int from, int to) {
+    for (int index = from; index < to; index++) {
+      if (buffer.get(index) > ' ') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private double parseDoubleSlowly(int from, int to) {
+    byte[] bytes = new byte[to - from];
+    for (int index = from; index < to; index++) {
+      bytes[index - from] = buffer.get(index);
+    }
+    return Double.parseDouble(new String(bytes, Charsets.UTF_8));
+  }
+
+  private NumberFormatException invalidLine() {
+    byte[] bytes = new byte[lineEnd - buffer.position()];
+    for (int index = 0; index < bytes.length; index++) {
+      bytes[index] = buffer.get(buffer.position() + index);
+    }
+    return new NumberFormatException("Unable to parse line [" + new String(bytes, Charsets.UTF_8) + ']');
+  }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm;
+
+import de.tuberlin.dima.recsys.ssnmm.metrics.Metrics;
+import de.tuberlin.dima.recsys.ssnmm.metrics.MetricsReporter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.PhaseTimer;
+import org.apache.mahout.common.iterator.FileLineIterator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.regex.Pattern;
+
+/**
+ * Measures how many ratings per second the line-based regex parsing and {@link RatingsIterable} can read
+ */
+public class RatingsThroughput {
+
+  public static void main(String[] args) throws IOException {
+
+    File ratingsFile = new File(args.length > 0 ? args[0] : "/home/ssc/Entwicklung/datasets/flixster/ratings.txt");
+    int numRounds = 3;
+
+    MetricsReporter reporter = Metrics.startReporting("RatingsThroughput");
+    try {
+      for (int round = 0; round < numRounds; round++) {
+        measure("regex", ratingsFile, true);
+        measure("bytes", ratingsFile, false);
+      }
+    } finally {
+      reporter.stop();
+    }
+  }
+
+  private static void measure(String name, File ratingsFile, boolean regex) throws IOException {
+    long start = System.nanoTime();
+    PhaseTimer.Phase phase = Metrics.get().timer("throughput." + name).start();
+
+    long ratingsRead = 0;
+    double checksum = 0;
+
+    if (regex) {
+      Pattern sep = Pattern.compile("[,\t]");
+      FileLineIterator lines = new FileLineIterator(ratingsFile);
+      while (lines.hasNext()) {
+        String[] parts = sep.split(lines.next());
+        checksum += Integer.parseInt(parts[0]) + Integer.parseInt(parts[1]) + Double.parseDouble(parts[2]);
+        ratingsRead++;
+      }
+    } else {
+      for (Rating rating : new RatingsIterable(ratingsFile)) {
+        checksum += rating.user() + rating.item() + rating.rating();
+        ratingsRead++;
+      }
+    }
+
+    phase.stop();
+    double seconds = (System.nanoTime() - start) / 1.0e9;
+    System.out.println(name + ": " + ratingsRead + " ratings in " + seconds + "s, " +
+        (long) (ratingsRead / seconds) + " ratings/s (checksum " + checksum + ")");
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm;
+
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.mahout.common.Pair;
+import org.apache.mahout.common.iterator.sequencefile.PathFilters;
+import org.apache.mahout.common.iterator.sequencefile.PathType;
+import org.apache.mahout.common.iterator.sequencefile.SequenceFileDirIterable;
+import org.apache.mahout.math.Vector;
+import org.apache.mahout.math.VectorWritable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Item-item similarities in compressed sparse row layout: the neighbors of item i are found at the positions
+ * rowOffsets[i] until rowOffsets[i + 1] of the neighbor and value arrays, sorted by neighbor index. The arrays are
+ * held in buffers, which either wrap heap arrays or views on a memory mapped file.
+ */
+public class SimilarityMatrix {
+
+  private static final int MAGIC = 0x534e5353;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+
+  private final IntBuffer rowOffsets;
+  private final IntBuffer neighbors;
+  private final FloatBuffer values;
+
+  public SimilarityMatrix(int[] rowOffsets, int[] neighbors, float[] values) {
+    this(IntBuffer.wrap(rowOffsets), IntBuffer.wrap(neighbors), FloatBuffer.wrap(values));
+  }
+
+  /**
+   * Creates the matrix on the remaining elements of the buffers, which must not be modified afterwards
+   */
+  public SimilarityMatrix(IntBuffer rowOffsets, IntBuffer neighbors, FloatBuffer values) {
+    this.rowOffsets = rowOffsets.slice();
+    this.neighbors = neighbors.slice();
+    this.values = values.slice();
+    Preconditions.checkArgument(this.rowOffsets.capacity() > 0 &&
+        this.rowOffsets.get(this.rowOffsets.capacity() - 1) == this.neighbors.capacity());
+    Preconditions.checkArgument(this.neighbors.capacity() == this.values.capacity());
+  }
+
+  /**
+   * Builds the matrix from the first numEntries (row, neighbor, value) triples given in arbitrary order
+   */
+  public static SimilarityMatrix fromEntries(int numRows, int[] rows, int[] neighbors, float[] values,
+      int numEntries) {
+
+    int[] rowOffsets = new int[numRows + 1];
+    for (int n = 0; n < numEntries; n++) {
+      rowOffsets[rows[n] + 1]++;
+    }
+    int maxRowLength = 0;
+    for (int row = 0; row < numRows; row++) {
+      maxRowLength = Math.max(maxRowLength, rowOffsets[row + 1]);
+      rowOffsets[row + 1] += rowOffsets[row];
+    }
+
+    int[] positions = Arrays.copyOf(rowOffsets, numRows);
+    int[] sortedNeighbors = new int[numEntries];
+    float[] sortedValues = new float[numEntries];
+    for (int n = 0; n < numEntries; n++) {
+      int position = positions[rows[n]]++;
+      sortedNeighbors[position] = neighbors[n];
+      sortedValues[position] = values[n];
+    }
+
+    /* sort each row by neighbor, packing neighbor and value into a long so that a primitive sort suffices */
+    long[] packed = new long[maxRowLength];
+    for (int row = 0; row < numRows; row++) {
+      int start = rowOffsets[row];
+      int length = rowOffsets[row + 1] - start;
+      for (int n = 0; n < length; n++) {
+        packed[n] = ((long) sortedNeighbors[start + n] << 32) |
+            (Float.floatToRawIntBits(sortedValues[start + n]) & 0xffffffffL);
+      }
+      Arrays.sort(packed, 0, length);
+      for (int n = 0; n < length; n++) {
+        sortedNeighbors[start + n] = (int) (packed[n] >>> 32);
+        sortedValues[start + n] = Float.intBitsToFloat((int) packed[n]);
+      }
+    }
+
+    return new SimilarityMatrix(rowOffsets, sortedNeighbors, sortedValues);
+  }
+
+  /**
+   * Reads the rows of a similarity matrix computed by Mahout's ItemSimilarityJob, translating the raw item ids with
+   * the dictionary unless it is null
+   */
+  public static SimilarityMatrix readSequenceFiles(File dir, int numItems, IDDictionary itemIDs) {
+
+    int[] rows = new int[1024];
+    int[] neighbors = new int[1024];
+    float[] values = new float[1024];
+    int numEntries = 0;
+
+    for (Pair<IntWritable, VectorWritable> pair : new SequenceFileDirIterable<IntWritable, VectorWritable>(
+        new Path(dir.getAbsolutePath()), PathType.LIST, PathFilters.partFilter(), new Configuration())) {
+
+      int row = pair.getFirst().get();
+      if (itemIDs != null) {
+        row = itemIDs.index(row);
+      }
+      Iterator<Vector.Element> elements = pair.getSecond().get().iterateNonZero();
+      while (elements.hasNext()) {
+        Vector.Element element = elements.next();
+        if (numEntries == rows.length) {
+          int capacity = rows.length * 2;
+          rows = Arrays.copyOf(rows, capacity);
+          neighbors = Arrays.copyOf(neighbors, capacity);
+          values = Arrays.copyOf(values, capacity);
+        }
+        rows[numEntries] = row;
+        neighbors[numEntries] = itemIDs != null ? itemIDs.index(element.index()) : element.index();
+        values[numEntries] = (float) element.get();
+        numEntries++;
+      }
+    }
+
+    return fromEntries(numItems, rows, neighbors, values, numEntries);
+  }
+
+  /**
+   * Creates the matrix whose row i holds the rows that have i as neighbor, with the same values. As the rows are
+   * visited in ascending order, the rows of the transposed matrix come out sorted as well.
+   */
+  public SimilarityMatrix transpose() {
+    int numRows = numRows();
+    int numSimilarities = numSimilarities();
+    int[] transposedOffsets = new int[numRows + 1];
+    for (int position = 0; position < numSimilarities; position++) {
+      transposedOffsets[neighbor(position) + 1]++;
+    }
+    for (int row = 0; row < numRows; row++) {
+      transposedOffsets[row + 1] += transposedOffsets[row];
+    }
+    int[] transposedNeighbors = new int[numSimilarities];
+    float[] transposedValues = new float[numSimilarities];
+    int[] positions = Arrays.copyOf(transposedOffsets, numRows);
+    for (int row = 0; row < numRows; row++) {
+      for (int position = rowStart(row); position < rowEnd(row); position++) {
+        int transposedPosition = positions[neighbor(position)]++;
+        transposedNeighbors[transposedPosition] = row;
+        transposedValues[transposedPosition] = value(position);
+      }
+    }
+    return new SimilarityMatrix(transposedOffsets, transposedNeighbors, transposedValues);
+  }
+
+  public int numRows() {
+    return rowOffsets.capacity() - 1;
+  }
+
+  public int numSimilarities() {
+    return neighbors.capacity();
+  }
+
+  /** position of the first neighbor of the row */
+  public int rowStart(int row) {
+    return rowOffsets.get(row);
+  }
+
+  /** position after the last neighbor of the row */
+  public int rowEnd(int row) {
+    return rowOffsets.get(row + 1);
+  }
+
+  public int neighbor(int position) {
+    return neighbors.get(position);
+  }
+
+  public float value(int position) {
+    return values.get(position);
+  }
+
+  /** approximate number of bytes occupied by the matrix */
+  public long sizeInBytes() {
+    return 4L * rowOffsets.capacity() + 8L * neighbors.capacity();
+  }
+
+  /** appends the row offsets, neighbors and values to the buffer, which advances its position */
+  void writeTo(ByteBuffer buffer) {
+    buffer.asIntBuffer().put(rowOffsets.duplicate());
+    buffer.position(buffer.position() + 4 * rowOffsets.capacity());
+    buffer.asIntBuffer().put(neighbors.duplicate());
+    buffer.position(buffer.position() + 4 * neighbors.capacity());
+    buffer.asFloatBuffer().put(values.duplicate());
+    buffer.position(buffer.position() + 4 * values.capacity());
+  }
+
+  /**
+   * Creates a matrix on the arrays stored at the position of the buffer by {@link #writeTo(ByteBuffer)}, without
+   * copying them, and advances the position of the buffer past them
+   */
+  static SimilarityMatrix readFrom(ByteBuffer buffer, int numRows, int numSimilarities) {
+    IntBuffer rowOffsets = buffer.asIntBuffer();
+    rowOffsets.limit(numRows + 1);
+    buffer.position(buffer.position() + 4 * (numRows + 1));
+    IntBuffer neighbors = buffer.asIntBuffer();
+    neighbors.limit(numSimilarities);
+    buffer.position(buffer.position() + 4 * numSimilarities);
+    FloatBuffer values = buffer.asFloatBuffer();
+    values.limit(numSimilarities);
+    buffer.position(buffer.position() + 4 * numSimilarities);
+    return new SimilarityMatrix(rowOffsets, neighbors, values);
+  }
+
+  public void write(File file) throws IOException {
+    long size = HEADER_SIZE + sizeInBytes();
+    RandomAccessFile out = new RandomAccessFile(file, "rw");
+    try {
+      out.setLength(size);
+      MappedByteBuffer buffer = out.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      buffer.putInt(MAGIC);
+      buffer.putInt(VERSION);
+      buffer.putInt(numRows());
+      buffer.putInt(numSimilarities());
+      writeTo(buffer);
+      buffer.force();
+    } finally {
+      Closeables.closeQuietly(out);
+    }
+  }
+
+  /**
+   * Reads a matrix written by {@link #write(File)} through a memory mapping, the arrays stay in the mapped file
+   */
+  public static SimilarityMatrix read(File file) throws IOException {
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      ByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      Preconditions.checkState(buffer.getInt() == MAGIC, file + " is not a similarity matrix");
+      int version = buffer.getInt();
+      Preconditions.checkState(version == VERSION, "Unsupported version " + version + " of " + file);
+
+      int numRows = buffer.getInt();
+      int numSimilarities = buffer.getInt();
+      return readFrom(buffer, numRows, numSimilarities);
+    } finally {
+      Closeables.closeQuietly(in);
+    }
+  }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bounded min-heap that keeps the k (id, value) pairs with the largest values offered to it, among equal values the
+ * smaller id wins. Instances are meant to be cleared and reused, they allocate nothing after construction.
+ */
+public class TopK {
+
+  private final int[] ids;
+  private final double[] values;
+  private int size;
+
+  public TopK(int k) {
+    Preconditions.checkArgument(k > 0);
+    ids = new int[k];
+    values = new double[k];
+  }
+
+  public void clear() {
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /** id of the n-th retained pair, the pairs are in heap order */
+  public int id(int n) {
+    return ids[n];
+  }
+
+  public double value(int n) {
+    return values[n];
+  }
+
+  public void offer(int id, double value) {
+    if (size < ids.length) {
+      ids[size] = id;
+      values[size] = value;
+      siftUp(size++);
+    } else if (isLess(0, id, value)) {
+      ids[0] = id;
+      values[0] = value;
+      siftDown(0);
+    }
+  }
+
+  /** whether the pair at index ranks below the given pair */
+  private boolean isLess(int index, int id, double value) {
+    return values[index] < value || (values[index] == value && ids[index] > id);
+  }
+
+  private void siftUp(int index) {
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      if (!isLess(index, ids[parent], values[parent])) {
+        return;
+      }
+      swap(index, parent);
+      index = parent;
+    }
+  }
+
+  private void siftDown(int index) {
+    while (true) {
+      int smallest = index;
+      int left = 2 * index + 1;
+      int right = left + 1;
+      if (left < size && isLess(left, ids[smallest], values[smallest])) {
+        smallest = left;
+      }
+      if (right < size && isLess(right, ids[smallest], values[smallest])) {
+        smallest = right;
+      }
+      if (smallest == index) {
+        return;
+      }
+      swap(index, smallest);
+      index = smallest;
+    }
+  }
+
+  private void swap(int first, int second) {
+    int id = ids[first];
+    double value = values[first];
+    ids[first] = ids[second];
+    values[first] = values[second];
+    ids[second] = id;
+    values[second] = value;
+  }
+}
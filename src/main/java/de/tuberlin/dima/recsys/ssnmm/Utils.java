@@ -14,7 +14,9 @@
 package de.tuberlin.dima.recsys.ssnmm;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Lists;
 import com.google.common.io.Closeables;
 
 import java.io.BufferedReader;
@@ -25,18 +27,117 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.util.Iterator;
+import java.util.List;
 
 /**
- * Helper methods for reading files
+ * Helper methods for reading files and for deriving random seeds
  */
 public class Utils {
+
+  /** read buffer size for line-based files */
+  static final int BUFFER_SIZE = 1 << 20;
   
   private Utils() {}
 
   public static Iterable<String> readLines(File file) {
     return new FileLineIterable(file);
   }
-  
+
+  /**
+   * Streams the ratings from a text file or from a file in the {@link BinaryRatings} format
+   */
+  public static Iterable<Rating> readRatings(File file) throws IOException {
+    return readRatings(file, null, null);
+  }
+
+  /**
+   * Streams the ratings from a text or binary file, translating the ids with the given dictionaries unless they are
+   * null
+   */
+  public static Iterable<Rating> readRatings(File file, IDDictionary userIDs, IDDictionary itemIDs)
+      throws IOException {
+    if (BinaryRatings.isBinaryRatingsFile(file)) {
+      return new BinaryRatingsIterable(file, 0, Long.MAX_VALUE, userIDs, itemIDs);
+    }
+    return new RatingsIterable(file, 0, Long.MAX_VALUE, userIDs, itemIDs);
+  }
+
+  /**
+   * Partitions a ratings file into splits of roughly splitSize bytes that can be read independently, each split
+   * opens a new reader whenever it is iterated. Compressed text files result in a single split.
+   */
+  public static List<Iterable<Rating>> splitRatings(File file, long splitSize) throws IOException {
+    return splitRatings(file, splitSize, null, null);
+  }
+
+  /**
+   * Partitions a ratings file into independently readable splits, translating the ids with the given dictionaries
+   * unless they are null
+   */
+  public static List<Iterable<Rating>> splitRatings(File file, long splitSize, IDDictionary userIDs,
+      IDDictionary itemIDs) throws IOException {
+    Preconditions.checkArgument(splitSize > 0);
+    List<Iterable<Rating>> splits = Lists.newArrayList();
+
+    if (BinaryRatings.isBinaryRatingsFile(file)) {
+      long numRatings = BinaryRatings.readHeader(file).numRatings();
+      long ratingsPerSplit = Math.max(1, splitSize / BinaryRatings.RECORD_SIZE);
+      for (long start = 0; start < numRatings; start += ratingsPerSplit) {
+        splits.add(new RatingsSplit(file, true, start, Math.min(start + ratingsPerSplit, numRatings), userIDs,
+            itemIDs));
+      }
+    } else if (file.getName().endsWith(".gz")) {
+      splits.add(new RatingsSplit(file, false, 0, Long.MAX_VALUE, userIDs, itemIDs));
+    } else {
+      long length = file.length();
+      for (long start = 0; start < length; start += splitSize) {
+        splits.add(new RatingsSplit(file, false, start, Math.min(start + splitSize, length), userIDs, itemIDs));
+      }
+    }
+    return splits;
+  }
+
+  /**
+   * Derives the seed of an independent random stream from a base seed, e.g. per purpose or per user. Seeding
+   * java.util.Random with consecutive seeds directly yields correlated first draws
+   */
+  public static long streamSeed(long seed, long stream) {
+    /* the finalizer of SplitMix64 */
+    long mixed = seed + stream * 0x9e3779b97f4a7c15L;
+    mixed = (mixed ^ (mixed >>> 30)) * 0xbf58476d1ce4e5b9L;
+    mixed = (mixed ^ (mixed >>> 27)) * 0x94d049bb133111ebL;
+    return mixed ^ (mixed >>> 31);
+  }
+
+  static class RatingsSplit implements Iterable<Rating> {
+
+    private final File file;
+    private final boolean binary;
+    private final long start;
+    private final long end;
+    private final IDDictionary userIDs;
+    private final IDDictionary itemIDs;
+
+    RatingsSplit(File file, boolean binary, long start, long end, IDDictionary userIDs, IDDictionary itemIDs) {
+      this.file = file;
+      this.binary = binary;
+      this.start = start;
+      this.end = end;
+      this.userIDs = userIDs;
+      this.itemIDs = itemIDs;
+    }
+
+    @Override
+    public Iterator<Rating> iterator() {
+      try {
+        return binary ? new BinaryRatingsIterable(file, start, end, userIDs, itemIDs) :
+            new RatingsIterable(file, start, end, userIDs, itemIDs);
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+
   static class FileLineIterable implements Iterable<String> {
 
     private final File file;
@@ -60,7 +161,7 @@ public class Utils {
     private final BufferedReader reader;
 
     FileLineIterator(File file, Charset encoding) throws IOException {
-      reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), encoding));
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), encoding), BUFFER_SIZE);
     }
 
     @Override
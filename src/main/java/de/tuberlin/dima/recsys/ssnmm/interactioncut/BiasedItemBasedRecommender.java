@@ -13,17 +13,31 @@
 
 package de.tuberlin.dima.recsys.ssnmm.interactioncut;
 
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import de.tuberlin.dima.recsys.ssnmm.TopK;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.impl.common.FullRunningAverage;
 import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
 import org.apache.mahout.cf.taste.impl.common.RunningAverage;
+import org.apache.mahout.cf.taste.impl.recommender.ByValueRecommendedItemComparator;
 import org.apache.mahout.cf.taste.impl.recommender.GenericItemBasedRecommender;
+import org.apache.mahout.cf.taste.impl.recommender.GenericRecommendedItem;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.model.Preference;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.IDRescorer;
+import org.apache.mahout.cf.taste.recommender.RecommendedItem;
 import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.apache.mahout.math.Sorting;
+import org.apache.mahout.math.function.IntComparator;
+import org.apache.mahout.math.list.IntArrayList;
 import org.apache.mahout.math.map.OpenLongDoubleHashMap;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Itembased recommender that uses weighted sum estimation enhanced by baseline estimates
  */
@@ -37,11 +51,41 @@ public class BiasedItemBasedRecommender extends GenericItemBasedRecommender {
 
   private final ItemSimilarity similarity;
 
+  /** optional precomputed neighbors of the items, null if the similarities are computed on demand */
+  private final NeighborIndex neighborIndex;
+
+  /** positions of the k most similar items seen so far, reused across the predictions of a thread */
+  private final ThreadLocal<TopK> topK;
+
+  /** scratch space of the recommendations of a thread, only used with a neighbor index */
+  private final ThreadLocal<CandidateScores> candidateScores;
+
   public BiasedItemBasedRecommender(DataModel dataModel, ItemSimilarity similarity, int k, double lambda2,
       double lambda3) throws TasteException {
+    this(dataModel, similarity, k, lambda2, lambda3, null);
+  }
+
+  /**
+   * Scores with the precomputed neighbors of the index, which should hold at least k neighbors per item
+   */
+  public BiasedItemBasedRecommender(DataModel dataModel, ItemSimilarity similarity, int k, double lambda2,
+      double lambda3, NeighborIndex neighborIndex) throws TasteException {
     super(dataModel, similarity);
     this.k = k;
     this.similarity = similarity;
+    this.neighborIndex = neighborIndex;
+    topK = new ThreadLocal<TopK>() {
+      @Override
+      protected TopK initialValue() {
+        return new TopK(BiasedItemBasedRecommender.this.k);
+      }
+    };
+    candidateScores = new ThreadLocal<CandidateScores>() {
+      @Override
+      protected CandidateScores initialValue() {
+        return new CandidateScores(BiasedItemBasedRecommender.this.neighborIndex.numItems());
+      }
+    };
 
     RunningAverage averageRating = new FullRunningAverage();
     LongPrimitiveIterator itemIDs = getDataModel().getItemIDs();
@@ -91,6 +135,112 @@ public class BiasedItemBasedRecommender extends GenericItemBasedRecommender {
     return doEstimatePreference(userID, preferencesFromUser, itemID);
   }
 
+  /**
+   * Estimates the preferences of a user for many items at once. The preferences of the user and the residuals of
+   * their ratings towards the baseline are looked up once for all items, existing ratings are found by binary search
+   * if the preferences are sorted by item id. Items the user already rated are answered with the actual rating.
+   */
+  public float[] estimatePreferences(long userID, long[] itemIDs) throws TasteException {
+
+    PreferenceArray preferencesFromUser = getDataModel().getPreferencesFromUser(userID);
+    long[] ratedItemIDs = preferencesFromUser.getIDs();
+    boolean sortedByItem = true;
+    for (int n = 1; n < ratedItemIDs.length && sortedByItem; n++) {
+      sortedByItem = ratedItemIDs[n - 1] < ratedItemIDs[n];
+    }
+
+    double userBaseline = mu + userBiases.get(userID);
+    double[] residuals = new double[ratedItemIDs.length];
+    for (int n = 0; n < residuals.length; n++) {
+      residuals[n] = preferencesFromUser.getValue(n) - (userBaseline + itemBiases.get(ratedItemIDs[n]));
+    }
+
+    float[] estimates = new float[itemIDs.length];
+    for (int n = 0; n < itemIDs.length; n++) {
+      long itemID = itemIDs[n];
+      if (sortedByItem) {
+        int position = Arrays.binarySearch(ratedItemIDs, itemID);
+        if (position >= 0) {
+          estimates[n] = preferencesFromUser.getValue(position);
+          continue;
+        }
+      } else {
+        Float actualPref = getPreferenceForItem(preferencesFromUser, itemID);
+        if (actualPref != null) {
+          estimates[n] = actualPref;
+          continue;
+        }
+      }
+      estimates[n] = estimate(userID, preferencesFromUser, itemID, residuals);
+    }
+    return estimates;
+  }
+
+  /**
+   * With a neighbor index, the candidates are the items that hold one of the user's items among their neighbors. The
+   * weighted residuals of the user's items are accumulated for all candidates in a single pass over the inverted
+   * neighbor lists, and the best howMany candidates are kept in a bounded heap. Candidates matching more than k of the
+   * user's items are rescored by selecting the k most similar ones, so the estimates equal those of
+   * estimatePreference. Without an index the recommendations are computed as in GenericItemBasedRecommender.
+   */
+  @Override
+  public List<RecommendedItem> recommend(long userID, int howMany, IDRescorer rescorer) throws TasteException {
+
+    if (neighborIndex == null) {
+      return super.recommend(userID, howMany, rescorer);
+    }
+    Preconditions.checkArgument(howMany >= 1, "howMany must be at least 1");
+
+    PreferenceArray preferencesFromUser = getDataModel().getPreferencesFromUser(userID);
+    double userBaseline = mu + userBiases.get(userID);
+    double[] residuals = new double[preferencesFromUser.length()];
+    for (int n = 0; n < residuals.length; n++) {
+      residuals[n] = preferencesFromUser.getValue(n) -
+          (userBaseline + itemBiases.get(preferencesFromUser.getItemID(n)));
+    }
+
+    CandidateScores scores = candidateScores.get();
+    try {
+      for (int n = 0; n < residuals.length; n++) {
+        int ratedItem = neighborIndex.index(preferencesFromUser.getItemID(n));
+        if (ratedItem >= 0) {
+          scores.markRated(ratedItem);
+          for (int position = neighborIndex.invertedStart(ratedItem);
+               position < neighborIndex.invertedEnd(ratedItem); position++) {
+            scores.add(neighborIndex.invertedItem(position), neighborIndex.invertedSimilarity(position), residuals[n]);
+          }
+        }
+      }
+
+      TopK topN = new TopK(howMany);
+      for (int n = 0; n < scores.numCandidates; n++) {
+        int candidate = scores.candidates[n];
+        long itemID = neighborIndex.itemID(candidate);
+        if (scores.rated[candidate] || scores.counts[candidate] <= 1 ||
+            (rescorer != null && rescorer.isFiltered(itemID))) {
+          continue;
+        }
+        float estimate = scores.counts[candidate] > k ?
+            estimate(userID, preferencesFromUser, itemID, residuals) :
+            (float) (baselineEstimate(userID, itemID) + scores.preferences[candidate] / scores.similarities[candidate]);
+        double score = rescorer != null ? rescorer.rescore(itemID, estimate) : estimate;
+        if (!Double.isNaN(score)) {
+          topN.offer(candidate, score);
+        }
+      }
+
+      List<RecommendedItem> recommendations = Lists.newArrayListWithCapacity(topN.size());
+      for (int n = 0; n < topN.size(); n++) {
+        recommendations.add(new GenericRecommendedItem(neighborIndex.itemID(topN.id(n)), (float) topN.value(n)));
+      }
+      Collections.sort(recommendations, ByValueRecommendedItemComparator.getInstance());
+      return recommendations;
+
+    } finally {
+      scores.clear();
+    }
+  }
+
   private static Float getPreferenceForItem(PreferenceArray preferencesFromUser, long itemID) {
     int size = preferencesFromUser.length();
     for (int i = 0; i < size; i++) {
@@ -105,65 +255,164 @@ public class BiasedItemBasedRecommender extends GenericItemBasedRecommender {
     return mu + userBiases.get(userID) + itemBiases.get(itemID);
   }
 
+  /**
+   * Computes the weighted sum of the baseline residuals of the k most similar items the user rated. The k most similar
+   * items are selected with a bounded min-heap held in a per-thread buffer, items with an undefined similarity are
+   * skipped before the selection. With a neighbor index, only the rated items among the precomputed neighbors of the
+   * item are considered.
+   */
   @Override
   protected float doEstimatePreference(long userID, PreferenceArray preferencesFromUser, long itemID)
       throws TasteException {
-    double preference = 0.0;
-    double totalSimilarity = 0.0;
-    int count = 0;
-    long[] userIDs = preferencesFromUser.getIDs();
-    float[] ratings = new float[userIDs.length];
-    long[] itemIDs = new long[userIDs.length];
-            
-    double[] similarities = similarity.itemSimilarities(itemID, userIDs);
+    return estimate(userID, preferencesFromUser, itemID, null);
+  }
 
-    for (int n = 0; n < preferencesFromUser.length(); n++) {
-      ratings[n] = preferencesFromUser.get(n).getValue();
-      itemIDs[n] = preferencesFromUser.get(n).getItemID();
-    }
+  /**
+   * Estimates a preference with the precomputed residuals of the user's ratings, or computes the residuals of the
+   * selected items if they are null
+   */
+  private float estimate(long userID, PreferenceArray preferencesFromUser, long itemID, double[] residuals)
+      throws TasteException {
 
-    quickSort(similarities, ratings, itemIDs, 0, (similarities.length - 1));
+    TopK mostSimilar = topK.get();
+    mostSimilar.clear();
 
-    for (int i = 0; i < Math.min(k, similarities.length); i++) {
-      double theSimilarity = similarities[i];
-      if (!Double.isNaN(theSimilarity)) {
-        preference += theSimilarity * (ratings[i] - baselineEstimate(userID, itemIDs[i]));
-        totalSimilarity += theSimilarity;
-        count++;
+    if (neighborIndex != null) {
+      collectIndexedNeighbors(preferencesFromUser, itemID, mostSimilar);
+    } else {
+      double[] similarities = similarity.itemSimilarities(itemID, preferencesFromUser.getIDs());
+      for (int n = 0; n < similarities.length; n++) {
+        if (!Double.isNaN(similarities[n])) {
+          mostSimilar.offer(n, similarities[n]);
+        }
       }
     }
-    if (count <= 1) {
+
+    if (mostSimilar.size() <= 1) {
       return Float.NaN;
     }
 
+    double userBaseline = mu + userBiases.get(userID);
+    double preference = 0.0;
+    double totalSimilarity = 0.0;
+    for (int n = 0; n < mostSimilar.size(); n++) {
+      int position = mostSimilar.id(n);
+      double theSimilarity = mostSimilar.value(n);
+      double residual = residuals != null ? residuals[position] : preferencesFromUser.getValue(position) -
+          (userBaseline + itemBiases.get(preferencesFromUser.getItemID(position)));
+      preference += theSimilarity * residual;
+      totalSimilarity += theSimilarity;
+    }
+
     float estimate = (float) (baselineEstimate(userID, itemID) + (preference / totalSimilarity));
     return estimate;
-  }  
-
-  protected void quickSort(double[] similarities, float[] values, long[] otherValues, int start, int end) {
-    if (start < end) {
-      double pivot = similarities[end];
-      float pivotValue = values[end];
-      int i = start;
-      int j = end;
-      while (i != j) {
-        if (similarities[i] > pivot) {
-          i = i + 1;
-        }
-        else {
-          similarities[j] = similarities[i];
-          values[j] = values[i];
-          otherValues[j] = otherValues[i];
-          similarities[i] = similarities[j - 1];
-          values[i] = values[j - 1];
-          otherValues[i] = otherValues[j - 1];
-          j = j - 1;
-        }
+  }
+
+  /**
+   * Intersects the neighbors of the item with the user's items by a merge. The neighbors are sorted by item id, and
+   * so are the preferences of a user in a {@link org.apache.mahout.cf.taste.impl.model.GenericDataModel}. The
+   * DataModel contract does not guarantee that order, so the preferences of other models are merged in the order of
+   * a sorted permutation if needed.
+   */
+  private void collectIndexedNeighbors(PreferenceArray preferencesFromUser, long itemID, TopK mostSimilar) {
+    int item = neighborIndex.index(itemID);
+    if (item < 0) {
+      return;
+    }
+    int[] order = isSortedByItem(preferencesFromUser) ? null : orderByItem(preferencesFromUser);
+    int position = neighborIndex.neighborsStart(item);
+    int end = neighborIndex.neighborsEnd(item);
+    int n = 0;
+    int length = preferencesFromUser.length();
+    while (position < end && n < length) {
+      int rated = order != null ? order[n] : n;
+      long neighborID = neighborIndex.itemID(neighborIndex.neighbor(position));
+      long ratedItemID = preferencesFromUser.getItemID(rated);
+      if (neighborID < ratedItemID) {
+        position++;
+      } else if (neighborID > ratedItemID) {
+        n++;
+      } else {
+        mostSimilar.offer(rated, neighborIndex.similarity(position));
+        position++;
+        n++;
+      }
+    }
+  }
+
+  private static boolean isSortedByItem(PreferenceArray preferences) {
+    for (int n = 1; n < preferences.length(); n++) {
+      if (preferences.getItemID(n - 1) > preferences.getItemID(n)) {
+        return false;
       }
-      similarities[j] = pivot;
-      values[j] = pivotValue ;
-      quickSort(similarities, values, otherValues, start, j - 1);
-      quickSort(similarities, values, otherValues, j + 1, end);
     }
-  }  
+    return true;
+  }
+
+  /** the positions of the preferences in the order of their item ids, the preferences are left untouched */
+  private static int[] orderByItem(final PreferenceArray preferences) {
+    int[] order = new int[preferences.length()];
+    for (int n = 0; n < order.length; n++) {
+      order[n] = n;
+    }
+    Sorting.quickSort(order, 0, order.length, new IntComparator() {
+      @Override
+      public int compare(int a, int b) {
+        long itemA = preferences.getItemID(a);
+        long itemB = preferences.getItemID(b);
+        return itemA < itemB ? -1 : itemA > itemB ? 1 : 0;
+      }
+    });
+    return order;
+  }
+
+  /**
+   * Weighted residual sums per candidate item in dense arrays, only the touched entries are reset after a query
+   */
+  static class CandidateScores {
+
+    final double[] preferences;
+    final double[] similarities;
+    final int[] counts;
+    final boolean[] rated;
+    final int[] candidates;
+    int numCandidates;
+    final IntArrayList ratedItems = new IntArrayList();
+
+    CandidateScores(int numItems) {
+      preferences = new double[numItems];
+      similarities = new double[numItems];
+      counts = new int[numItems];
+      rated = new boolean[numItems];
+      candidates = new int[numItems];
+    }
+
+    void markRated(int item) {
+      rated[item] = true;
+      ratedItems.add(item);
+    }
+
+    void add(int candidate, double similarity, double residual) {
+      if (counts[candidate] == 0) {
+        candidates[numCandidates++] = candidate;
+      }
+      preferences[candidate] += similarity * residual;
+      similarities[candidate] += similarity;
+      counts[candidate]++;
+    }
+
+    void clear() {
+      for (int n = 0; n < numCandidates; n++) {
+        int candidate = candidates[n];
+        preferences[candidate] = 0;
+        similarities[candidate] = 0;
+        counts[candidate] = 0;
+      }
+      numCandidates = 0;
+      for (int n = 0; n < ratedItems.size(); n++) {
+        rated[ratedItems.getQuick(n)] = false;
+      }
+      ratedItems.clear();
+    }
+  }
 }
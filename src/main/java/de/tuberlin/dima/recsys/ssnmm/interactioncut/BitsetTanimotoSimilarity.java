@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.interactioncut;
+
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Tanimoto coefficient of items, computed on a snapshot of the users of every item taken at construction time. Users
+ * are numbered by the ascending order of their ids. An item with many users holds them as a bitset, whose
+ * intersections are counted word-wise by popcount, an item with few users holds them as a sorted array, which is
+ * smaller than a bitset then. The coefficients are equal to the ones of Mahout's TanimotoCoefficientSimilarity on the
+ * same data, pairs without common users and unknown items answer NaN.
+ */
+public class BitsetTanimotoSimilarity implements ItemSimilarity {
+
+  private final DataModel dataModel;
+  private final int numUsers;
+
+  private final long[] itemIDs;
+  private final int[] numUsersPerItem;
+  /** the users of an item as bitset, null for items stored as array */
+  private final long[][] bitsets;
+  /** the users of an item as ascending array, null for items stored as bitset */
+  private final int[][] users;
+  /** first and last word of the bitset that holds a user of the item */
+  private final int[] firstWords;
+  private final int[] lastWords;
+
+  /** scratch bitset for the batch similarities of an item stored as array, cleared after every use */
+  private final ThreadLocal<long[]> scratch = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[numWords()];
+    }
+  };
+
+  public BitsetTanimotoSimilarity(DataModel dataModel) throws TasteException {
+    this.dataModel = dataModel;
+
+    long[] userIDs = new long[dataModel.getNumUsers()];
+    LongPrimitiveIterator ids = dataModel.getUserIDs();
+    for (int user = 0; user < userIDs.length; user++) {
+      userIDs[user] = ids.nextLong();
+    }
+    Arrays.sort(userIDs);
+    numUsers = userIDs.length;
+
+    itemIDs = new long[dataModel.getNumItems()];
+    ids = dataModel.getItemIDs();
+    for (int item = 0; item < itemIDs.length; item++) {
+      itemIDs[item] = ids.nextLong();
+    }
+    Arrays.sort(itemIDs);
+
+    int numItems = itemIDs.length;
+    numUsersPerItem = new int[numItems];
+    bitsets = new long[numItems][];
+    users = new int[numItems][];
+    firstWords = new int[numItems];
+    lastWords = new int[numItems];
+
+    for (int item = 0; item < numItems; item++) {
+      long[] usersOfItem = dataModel.getPreferencesForItem(itemIDs[item]).getIDs();
+      int[] indices = new int[usersOfItem.length];
+      for (int n = 0; n < usersOfItem.length; n++) {
+        indices[n] = Arrays.binarySearch(userIDs, usersOfItem[n]);
+      }
+      Arrays.sort(indices);
+
+      numUsersPerItem[item] = indices.length;
+      firstWords[item] = indices.length > 0 ? indices[0] >>> 6 : 0;
+      lastWords[item] = indices.length > 0 ? indices[indices.length - 1] >>> 6 : -1;
+      /* a bitset takes numUsers / 8 bytes, an array 4 bytes per user */
+      if ((long) indices.length * 32 >= numUsers) {
+        long[] bitset = new long[numWords()];
+        for (int user : indices) {
+          bitset[user >>> 6] |= 1L << user;
+        }
+        bitsets[item] = bitset;
+      } else {
+        users[item] = indices;
+      }
+    }
+  }
+
+  private int numWords() {
+    return (numUsers + 63) >>> 6;
+  }
+
+  @Override
+  public double itemSimilarity(long itemID1, long itemID2) {
+    int item1 = Arrays.binarySearch(itemIDs, itemID1);
+    int item2 = Arrays.binarySearch(itemIDs, itemID2);
+    if (item1 < 0 || item2 < 0) {
+      return Double.NaN;
+    }
+    int intersection;
+    if (users[item1] != null && users[item2] != null) {
+      intersection = intersectArrays(users[item1], users[item2]);
+    } else if (users[item1] != null) {
+      intersection = intersect(users[item1], bitsets[item2]);
+    } else if (users[item2] != null) {
+      intersection = intersect(users[item2], bitsets[item1]);
+    } else {
+      intersection = intersect(bitsets[item1], item1, bitsets[item2], item2);
+    }
+    return tanimoto(item1, item2, intersection);
+  }
+
+  /**
+   * Compares the item to all given items against a single bitset of its users, which is borrowed from the item or
+   * filled into a scratch bitset of the calling thread
+   */
+  @Override
+  public double[] itemSimilarities(long itemID1, long[] itemID2s) {
+    double[] similarities = new double[itemID2s.length];
+    int item1 = Arrays.binarySearch(itemIDs, itemID1);
+    if (item1 < 0) {
+      Arrays.fill(similarities, Double.NaN);
+      return similarities;
+    }
+
+    int[] users1 = users[item1];
+    long[] bitset1 = bitsets[item1];
+    if (users1 != null) {
+      bitset1 = scratch.get();
+      for (int user : users1) {
+        bitset1[user >>> 6] |= 1L << user;
+      }
+    }
+
+    for (int n = 0; n < itemID2s.length; n++) {
+      int item2 = Arrays.binarySearch(itemIDs, itemID2s[n]);
+      if (item2 < 0) {
+        similarities[n] = Double.NaN;
+        continue;
+      }
+      int intersection;
+      if (users[item2] != null) {
+        intersection = intersect(users[item2], bitset1);
+      } else if (users1 != null) {
+        intersection = intersect(users1, bitsets[item2]);
+      } else {
+        intersection = intersect(bitset1, item1, bitsets[item2], item2);
+      }
+      similarities[n] = tanimoto(item1, item2, intersection);
+    }
+
+    if (users1 != null) {
+      for (int user : users1) {
+        bitset1[user >>> 6] = 0;
+      }
+    }
+    return similarities;
+  }
+
+  private double tanimoto(int item1, int item2, int intersection) {
+    if (intersection == 0) {
+      return Double.NaN;
+    }
+    return (double) intersection / (numUsersPerItem[item1] + numUsersPerItem[item2] - intersection);
+  }
+
+  /** popcount of the conjunction, restricted to the words in which both items have users */
+  private int intersect(long[] bitset1, int item1, long[] bitset2, int item2) {
+    int from = Math.max(firstWords[item1], firstWords[item2]);
+    int to = Math.min(lastWords[item1], lastWords[item2]);
+    int intersection = 0;
+    for (int word = from; word <= to; word++) {
+      intersection += Long.bitCount(bitset1[word] & bitset2[word]);
+    }
+    return intersection;
+  }
+
+  private static int intersect(int[] users, long[] bitset) {
+    int intersection = 0;
+    for (int user : users) {
+      if ((bitset[user >>> 6] & (1L << user)) != 0) {
+        intersection++;
+      }
+    }
+    return intersection;
+  }
+
+  private static int intersectArrays(int[] users1, int[] users2) {
+    int intersection = 0;
+    int n = 0;
+    int m = 0;
+    while (n < users1.length && m < users2.length) {
+      if (users1[n] < users2[m]) {
+        n++;
+      } else if (users1[n] > users2[m]) {
+        m++;
+      } else {
+        intersection++;
+        n++;
+        m++;
+      }
+    }
+    return intersection;
+  }
+
+  /** all items that share a user with the given item */
+  @Override
+  public long[] allSimilarItemIDs(long itemID) throws TasteException {
+    FastIDSet similarItemIDs = new FastIDSet();
+    for (long userID : dataModel.getPreferencesForItem(itemID).getIDs()) {
+      similarItemIDs.addAll(dataModel.getItemIDsFromUser(userID));
+    }
+    similarItemIDs.remove(itemID);
+    return similarItemIDs.toArray();
+  }
+
+  /** the users of the items are a snapshot of the data model, which is not refreshed */
+  @Override
+  public void refresh(Collection<Refreshable> alreadyRefreshed) {}
+}
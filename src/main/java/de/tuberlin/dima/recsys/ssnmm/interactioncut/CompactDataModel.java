@@ -0,0 +1,439 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.interactioncut;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.UnmodifiableIterator;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveArrayIterator;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.AbstractDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericPreference;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.impl.model.GenericItemPreferenceArray;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Read-only {@link org.apache.mahout.cf.taste.model.DataModel} that holds the preferences twice in compressed sparse
+ * row layout: grouped by user and sorted by item id, as well as grouped by item and sorted by user id. The preferences
+ * of user u are found at the positions userOffsets[u] until userOffsets[u + 1] of userItemIDs and userValues, where u
+ * is the position of the user id in the sorted userIDs, the item-major arrays are organized alike. The preference
+ * arrays handed out are views on these arrays.
+ */
+public class CompactDataModel extends AbstractDataModel {
+
+  private static final long serialVersionUID = 1L;
+
+  private final long[] userIDs;
+  private final int[] userOffsets;
+  private final long[] userItemIDs;
+  private final float[] userValues;
+
+  private final long[] itemIDs;
+  private final int[] itemOffsets;
+  private final long[] itemUserIDs;
+  private final float[] itemValues;
+
+  /**
+   * Creates the model from user-major arrays, the user ids must be ascending and the item ids of every user as well
+   */
+  CompactDataModel(long[] userIDs, int[] userOffsets, long[] userItemIDs, float[] userValues) {
+    Preconditions.checkArgument(userOffsets.length == userIDs.length + 1);
+    Preconditions.checkArgument(userItemIDs.length == userOffsets[userIDs.length]);
+    this.userIDs = userIDs;
+    this.userOffsets = userOffsets;
+    this.userItemIDs = userItemIDs;
+    this.userValues = userValues;
+
+    int numPrefs = userItemIDs.length;
+    float minPreference = Float.POSITIVE_INFINITY;
+    float maxPreference = Float.NEGATIVE_INFINITY;
+    for (float value : userValues) {
+      minPreference = Math.min(minPreference, value);
+      maxPreference = Math.max(maxPreference, value);
+    }
+    setMinPreference(minPreference);
+    setMaxPreference(maxPreference);
+
+    /* number the distinct items by the ascending order of their ids */
+    FastIDSet distinctItemIDs = new FastIDSet();
+    for (long itemID : userItemIDs) {
+      distinctItemIDs.add(itemID);
+    }
+    itemIDs = distinctItemIDs.toArray();
+    Arrays.sort(itemIDs);
+    int numItems = itemIDs.length;
+    OpenLongIntHashMap indices = new OpenLongIntHashMap(numItems);
+    for (int item = 0; item < numItems; item++) {
+      indices.put(itemIDs[item], item);
+    }
+
+    /* transpose by a counting sort, visiting the users in ascending order keeps the users of every item sorted */
+    int[] itemIndices = new int[numPrefs];
+    itemOffsets = new int[numItems + 1];
+    for (int n = 0; n < numPrefs; n++) {
+      itemIndices[n] = indices.get(userItemIDs[n]);
+      itemOffsets[itemIndices[n] + 1]++;
+    }
+    for (int item = 0; item < numItems; item++) {
+      itemOffsets[item + 1] += itemOffsets[item];
+    }
+    itemUserIDs = new long[numPrefs];
+    itemValues = new float[numPrefs];
+    int[] positions = Arrays.copyOf(itemOffsets, numItems);
+    for (int user = 0; user < userIDs.length; user++) {
+      for (int n = userOffsets[user]; n < userOffsets[user + 1]; n++) {
+        int position = positions[itemIndices[n]]++;
+        itemUserIDs[position] = userIDs[user];
+        itemValues[position] = userValues[n];
+      }
+    }
+  }
+
+  /**
+   * Copies at most maxPrefsPerUser preferences per user into a new model, users with more preferences are down-sampled
+   * by reservoir sampling. The sampled preferences are written straight into the arrays of the model.
+   */
+  public static CompactDataModel sample(FastByIDMap<PreferenceArray> data, int maxPrefsPerUser, Random random) {
+
+    long[] userIDs = new long[data.size()];
+    LongPrimitiveIterator ids = data.keySetIterator();
+    for (int user = 0; user < userIDs.length; user++) {
+      userIDs[user] = ids.nextLong();
+    }
+    Arrays.sort(userIDs);
+
+    int[] userOffsets = new int[userIDs.length + 1];
+    for (int user = 0; user < userIDs.length; user++) {
+      userOffsets[user + 1] = userOffsets[user] + Math.min(data.get(userIDs[user]).length(), maxPrefsPerUser);
+    }
+
+    long[] userItemIDs = new long[userOffsets[userIDs.length]];
+    float[] userValues = new float[userItemIDs.length];
+    int[] reservoir = new int[maxPrefsPerUser];
+
+    for (int user = 0; user < userIDs.length; user++) {
+      PreferenceArray prefs = data.get(userIDs[user]);
+      int numSampled = userOffsets[user + 1] - userOffsets[user];
+      for (int n = 0; n < numSampled; n++) {
+        reservoir[n] = n;
+      }
+      for (int n = numSampled; n < prefs.length(); n++) {
+        int slot = random.nextInt(n + 1);
+        if (slot < numSampled) {
+          reservoir[slot] = n;
+        }
+      }
+      /* keep the sampled preferences in their original order, which is sorted by item in most models */
+      Arrays.sort(reservoir, 0, numSampled);
+
+      int offset = userOffsets[user];
+      boolean sortedByItem = true;
+      for (int n = 0; n < numSampled; n++) {
+        userItemIDs[offset + n] = prefs.getItemID(reservoir[n]);
+        userValues[offset + n] = prefs.getValue(reservoir[n]);
+        sortedByItem &= n == 0 || userItemIDs[offset + n - 1] < userItemIDs[offset + n];
+      }
+      if (!sortedByItem) {
+        sortByItem(userItemIDs, userValues, offset, offset + numSampled);
+      }
+    }
+
+    return new CompactDataModel(userIDs, userOffsets, userItemIDs, userValues);
+  }
+
+  /**
+   * Sorts a range of preferences of a user, which holds every item at most once, by item id
+   */
+  private static void sortByItem(long[] itemIDs, float[] values, int from, int to) {
+    long[] sortedItemIDs = Arrays.copyOfRange(itemIDs, from, to);
+    Arrays.sort(sortedItemIDs);
+    float[] sortedValues = new float[to - from];
+    for (int n = from; n < to; n++) {
+      sortedValues[Arrays.binarySearch(sortedItemIDs, itemIDs[n])] = values[n];
+    }
+    System.arraycopy(sortedItemIDs, 0, itemIDs, from, sortedItemIDs.length);
+    System.arraycopy(sortedValues, 0, values, from, sortedValues.length);
+  }
+
+  @Override
+  public LongPrimitiveIterator getUserIDs() {
+    return new LongPrimitiveArrayIterator(userIDs);
+  }
+
+  @Override
+  public PreferenceArray getPreferencesFromUser(long userID) throws NoSuchUserException {
+    int user = userIndex(userID);
+    return new PreferenceArrayView(userID, true, userItemIDs, userValues, userOffsets[user], userOffsets[user + 1]);
+  }
+
+  @Override
+  public FastIDSet getItemIDsFromUser(long userID) throws NoSuchUserException {
+    int user = userIndex(userID);
+    FastIDSet ids = new FastIDSet(userOffsets[user + 1] - userOffsets[user]);
+    for (int n = userOffsets[user]; n < userOffsets[user + 1]; n++) {
+      ids.add(userItemIDs[n]);
+    }
+    return ids;
+  }
+
+  @Override
+  public LongPrimitiveIterator getItemIDs() {
+    return new LongPrimitiveArrayIterator(itemIDs);
+  }
+
+  @Override
+  public PreferenceArray getPreferencesForItem(long itemID) throws NoSuchItemException {
+    int item = itemIndex(itemID);
+    return new PreferenceArrayView(itemID, false, itemUserIDs, itemValues, itemOffsets[item], itemOffsets[item + 1]);
+  }
+
+  @Override
+  public Float getPreferenceValue(long userID, long itemID) throws NoSuchUserException {
+    int user = userIndex(userID);
+    int position = Arrays.binarySearch(userItemIDs, userOffsets[user], userOffsets[user + 1], itemID);
+    return position >= 0 ? userValues[position] : null;
+  }
+
+  @Override
+  public Long getPreferenceTime(long userID, long itemID) {
+    return null;
+  }
+
+  @Override
+  public int getNumItems() {
+    return itemIDs.length;
+  }
+
+  @Override
+  public int getNumUsers() {
+    return userIDs.length;
+  }
+
+  @Override
+  public int getNumUsersWithPreferenceFor(long itemID) {
+    int item = Arrays.binarySearch(itemIDs, itemID);
+    return item >= 0 ? itemOffsets[item + 1] - itemOffsets[item] : 0;
+  }
+
+  /**
+   * Intersects the sorted users of both items by a merge
+   */
+  @Override
+  public int getNumUsersWithPreferenceFor(long itemID1, long itemID2) {
+    int item1 = Arrays.binarySearch(itemIDs, itemID1);
+    int item2 = Arrays.binarySearch(itemIDs, itemID2);
+    if (item1 < 0 || item2 < 0) {
+      return 0;
+    }
+    int position1 = itemOffsets[item1];
+    int position2 = itemOffsets[item2];
+    int count = 0;
+    while (position1 < itemOffsets[item1 + 1] && position2 < itemOffsets[item2 + 1]) {
+      long userID1 = itemUserIDs[position1];
+      long userID2 = itemUserIDs[position2];
+      if (userID1 < userID2) {
+        position1++;
+      } else if (userID1 > userID2) {
+        position2++;
+      } else {
+        count++;
+        position1++;
+        position2++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public void setPreference(long userID, long itemID, float value) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void removePreference(long userID, long itemID) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public boolean hasPreferenceValues() {
+    return true;
+  }
+
+  @Override
+  public void refresh(Collection<Refreshable> alreadyRefreshed) {}
+
+  private int userIndex(long userID) throws NoSuchUserException {
+    int user = Arrays.binarySearch(userIDs, userID);
+    if (user < 0) {
+      throw new NoSuchUserException(userID);
+    }
+    return user;
+  }
+
+  private int itemIndex(long itemID) throws NoSuchItemException {
+    int item = Arrays.binarySearch(itemIDs, itemID);
+    if (item < 0) {
+      throw new NoSuchItemException(itemID);
+    }
+    return item;
+  }
+
+  /**
+   * Read-only view on the preferences of a single user or item. As the ids are not stored in an array of their own,
+   * {@link #getIDs()} returns a copy.
+   */
+  static class PreferenceArrayView implements PreferenceArray {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long id;
+    private final boolean byUser;
+    private final long[] ids;
+    private final float[] values;
+    private final int from;
+    private final int to;
+
+    PreferenceArrayView(long id, boolean byUser, long[] ids, float[] values, int from, int to) {
+      this.id = id;
+      this.byUser = byUser;
+      this.ids = ids;
+      this.values = values;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    public int length() {
+      return to - from;
+    }
+
+    @Override
+    public Preference get(int n) {
+      return new GenericPreference(getUserID(n), getItemID(n), values[from + n]);
+    }
+
+    @Override
+    public long getUserID(int n) {
+      return byUser ? id : ids[from + n];
+    }
+
+    @Override
+    public long getItemID(int n) {
+      return byUser ? ids[from + n] : id;
+    }
+
+    @Override
+    public long[] getIDs() {
+      return Arrays.copyOfRange(ids, from, to);
+    }
+
+    @Override
+    public float getValue(int n) {
+      return values[from + n];
+    }
+
+    @Override
+    public boolean hasPrefWithUserID(long userID) {
+      return byUser ? id == userID : Arrays.binarySearch(ids, from, to, userID) >= 0;
+    }
+
+    @Override
+    public boolean hasPrefWithItemID(long itemID) {
+      return byUser ? Arrays.binarySearch(ids, from, to, itemID) >= 0 : id == itemID;
+    }
+
+    /** returns a modifiable copy */
+    @Override
+    public PreferenceArray clone() {
+      PreferenceArray copy = byUser ? new GenericUserPreferenceArray(length()) :
+          new GenericItemPreferenceArray(length());
+      for (int n = 0; n < length(); n++) {
+        copy.setUserID(n, getUserID(n));
+        copy.setItemID(n, getItemID(n));
+        copy.setValue(n, getValue(n));
+      }
+      return copy;
+    }
+
+    @Override
+    public Iterator<Preference> iterator() {
+      return new UnmodifiableIterator<Preference>() {
+        private int n;
+
+        @Override
+        public boolean hasNext() {
+          return n < length();
+        }
+
+        @Override
+        public Preference next() {
+          return get(n++);
+        }
+      };
+    }
+
+    /**
+     * No-op, the preferences of a user share the user id and are sorted by item already, those of an item are sorted by
+     * user, like in Mahout's preference arrays
+     */
+    @Override
+    public void sortByUser() {}
+
+    /** no-op, see {@link #sortByUser()} */
+    @Override
+    public void sortByItem() {}
+
+    @Override
+    public void sortByValue() {
+      throw new UnsupportedOperationException("The view is read-only");
+    }
+
+    @Override
+    public void sortByValueReversed() {
+      throw new UnsupportedOperationException("The view is read-only");
+    }
+
+    @Override
+    public void set(int n, Preference pref) {
+      throw new UnsupportedOperationException("The view is read-only");
+    }
+
+    @Override
+    public void setUserID(int n, long userID) {
+      throw new UnsupportedOperationException("The view is read-only");
+    }
+
+    @Override
+    public void setItemID(int n, long itemID) {
+      throw new UnsupportedOperationException("The view is read-only");
+    }
+
+    @Override
+    public void setValue(int n, float value) {
+      throw new UnsupportedOperationException("The view is read-only");
+    }
+  }
+}
@@ -14,19 +14,23 @@
 package de.tuberlin.dima.recsys.ssnmm.interactioncut;
 
 import com.google.common.collect.Lists;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Metrics;
+import de.tuberlin.dima.recsys.ssnmm.metrics.MetricsReporter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.PhaseTimer;
 import org.apache.mahout.cf.taste.common.TasteException;
 import org.apache.mahout.cf.taste.eval.RecommenderBuilder;
-import org.apache.mahout.cf.taste.eval.RecommenderEvaluator;
-import org.apache.mahout.cf.taste.impl.eval.AverageAbsoluteDifferenceRecommenderEvaluator;
 import org.apache.mahout.cf.taste.impl.model.file.FileDataModel;
-import org.apache.mahout.cf.taste.impl.similarity.CachingItemSimilarity;
-import org.apache.mahout.cf.taste.impl.similarity.TanimotoCoefficientSimilarity;
 import org.apache.mahout.cf.taste.model.DataModel;
 import org.apache.mahout.cf.taste.recommender.Recommender;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Compute the prediction error achieved by several 'interaction-cuts'
@@ -49,26 +53,151 @@ public class Evaluate {
     int maxP = 800;
     int pStepSize = 250;
 
-    runEvaluation(interactions, k, lambda2, lambda3, trainingPercentage, numRuns, minP, maxP, pStepSize);
+    /* precompute this many neighbors per item, 0 computes the similarities on demand */
+    int numNeighbors = 0;
+
+    /* every concurrent run holds its own training data and item bitsets in memory */
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    long seed = 0xcafebabe;
+
+    /* nest the samples of the cuts of a run, so that the co-occurrences are counted once per run */
+    boolean nestedSampling = false;
+
+    MetricsReporter reporter = Metrics.startReporting("InteractionCutEvaluation");
+    try {
+      if (nestedSampling) {
+        runNestedEvaluation(interactions, k, lambda2, lambda3, trainingPercentage, numRuns, minP, maxP, pStepSize,
+            numNeighbors, numThreads, seed);
+      } else {
+        runEvaluation(interactions, k, lambda2, lambda3, trainingPercentage, numRuns, minP, maxP, pStepSize,
+            numNeighbors, numThreads, seed);
+      }
+    } finally {
+      reporter.stop();
+    }
   }
 
-  static void runEvaluation(DataModel interactions, int k, double lambda2, double lambda3, double trainingPercentage,
-      int numRuns, int minP, int maxP, int pStepSize) throws IOException, TasteException {
+  /**
+   * Evaluates all interaction-cuts of a run on nested samples of the same split, growing the cut from minP to maxP.
+   * The runs are distributed over a pool of numThreads threads, the n-th run uses the seed + n.
+   */
+  static void runNestedEvaluation(final DataModel interactions, int k, double lambda2, double lambda3,
+      double trainingPercentage, int numRuns, final int minP, final int maxP, final int pStepSize, int numNeighbors,
+      int numThreads, long seed) throws TasteException {
 
-    RecommenderEvaluator maeEvaluator = new AverageAbsoluteDifferenceRecommenderEvaluator();
-    List<Errors> errors = Lists.newArrayList();
+    final SeededEvaluator evaluator = new SeededEvaluator(trainingPercentage, 1 - trainingPercentage);
+    final BiasedRecommenderBuilder recommenderBuilder = new BiasedRecommenderBuilder(lambda2, lambda3, k,
+        numNeighbors, 1);
 
+    final PhaseTimer building = Metrics.get().timer("interactionCut.build");
+
+    List<Errors> errors = Lists.newArrayList();
     for (int maxPrefsPerUser = minP; maxPrefsPerUser <= maxP; maxPrefsPerUser += pStepSize) {
-      Errors error = new Errors(maxPrefsPerUser);
+      errors.add(new Errors(maxPrefsPerUser));
+    }
 
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<List<SeededEvaluator.Evaluation>>> runs = Lists.newArrayListWithCapacity(numRuns);
       for (int n = 0; n < numRuns; n++) {
-        double maeSampled = maeEvaluator.evaluate(new BiasedRecommenderBuilder(lambda2, lambda3, k),
-            new InteractionCutDataModelBuilder(maxPrefsPerUser), interactions, trainingPercentage,
-            1 - trainingPercentage);
-        error.record(0, maeSampled);
+        final long runSeed = seed + n;
+        runs.add(executor.submit(new Callable<List<SeededEvaluator.Evaluation>>() {
+          @Override
+          public List<SeededEvaluator.Evaluation> call() throws TasteException {
+            SeededEvaluator.Split split = evaluator.split(interactions, runSeed);
+            NestedInteractionCut cut = new NestedInteractionCut(split.trainingPrefs(), runSeed);
+            List<SeededEvaluator.Evaluation> evaluations = Lists.newArrayList();
+            for (int maxPrefsPerUser = minP; maxPrefsPerUser <= maxP; maxPrefsPerUser += pStepSize) {
+              PhaseTimer.Phase phase = building.start();
+              DataModel trainingModel = cut.sample(maxPrefsPerUser);
+              Recommender recommender = recommenderBuilder.buildRecommender(trainingModel, cut.similarity());
+              phase.stop();
+              evaluations.add(evaluator.evaluate(recommender, trainingModel, split.testPrefs()));
+            }
+            return evaluations;
+          }
+        }));
+      }
+
+      for (Future<List<SeededEvaluator.Evaluation>> run : runs) {
+        List<SeededEvaluator.Evaluation> evaluations = run.get();
+        for (int n = 0; n < errors.size(); n++) {
+          errors.get(n).record(evaluations.get(n).rmse(), evaluations.get(n).mae());
+        }
+      }
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TasteException) {
+        throw (TasteException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    for (Errors res : errors) {
+      System.out.println(res);
+    }
+  }
+
+  /**
+   * Runs the grid of interaction-cuts and runs on a pool of numThreads threads, which bounds the number of training
+   * sets held in memory at once. The n-th run of every interaction-cut uses the seed + n, so all cuts are evaluated on
+   * the same splits and the results only depend on the seed. The errors are collected in the order of the grid.
+   */
+  static void runEvaluation(final DataModel interactions, int k, double lambda2, double lambda3,
+      double trainingPercentage, int numRuns, int minP, int maxP, int pStepSize, int numNeighbors, int numThreads,
+      long seed) throws TasteException {
+
+    final SeededEvaluator evaluator = new SeededEvaluator(trainingPercentage, 1 - trainingPercentage);
+    /* the runs are parallel already, so the neighbor index is built by a single thread per run */
+    final BiasedRecommenderBuilder recommenderBuilder = new BiasedRecommenderBuilder(lambda2, lambda3, k,
+        numNeighbors, 1);
+
+    List<Errors> errors = Lists.newArrayList();
+    List<List<Future<SeededEvaluator.Evaluation>>> evaluations = Lists.newArrayList();
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      for (int maxPrefsPerUser = minP; maxPrefsPerUser <= maxP; maxPrefsPerUser += pStepSize) {
+        errors.add(new Errors(maxPrefsPerUser));
+        List<Future<SeededEvaluator.Evaluation>> runs = Lists.newArrayListWithCapacity(numRuns);
+        for (int n = 0; n < numRuns; n++) {
+          final long runSeed = seed + n;
+          final InteractionCutDataModelBuilder dataModelBuilder =
+              new InteractionCutDataModelBuilder(maxPrefsPerUser, runSeed);
+          runs.add(executor.submit(new Callable<SeededEvaluator.Evaluation>() {
+            @Override
+            public SeededEvaluator.Evaluation call() throws TasteException {
+              return evaluator.evaluate(recommenderBuilder, dataModelBuilder, interactions, runSeed);
+            }
+          }));
+        }
+        evaluations.add(runs);
       }
-      errors.add(error);
+
+      for (int n = 0; n < errors.size(); n++) {
+        for (Future<SeededEvaluator.Evaluation> run : evaluations.get(n)) {
+          SeededEvaluator.Evaluation evaluation = run.get();
+          errors.get(n).record(evaluation.rmse(), evaluation.mae());
+        }
+      }
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TasteException) {
+        throw (TasteException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
     }
+
     for (Errors res : errors) {
       System.out.println(res);
     }
@@ -79,17 +208,29 @@ public class Evaluate {
     private final int k;
     private final double lambda2;
     private final double lambda3;
+    private final int numNeighbors;
+    private final int numIndexThreads;
 
-    BiasedRecommenderBuilder(double lambda2, double lambda3, int k) {
+    BiasedRecommenderBuilder(double lambda2, double lambda3, int k, int numNeighbors, int numIndexThreads) {
       this.lambda2 = lambda2;
       this.lambda3 = lambda3;
       this.k = k;
+      this.numNeighbors = numNeighbors;
+      this.numIndexThreads = numIndexThreads;
     }
 
     @Override
     public Recommender buildRecommender(DataModel dataModel) throws TasteException {
-      return new BiasedItemBasedRecommender(dataModel, new CachingItemSimilarity(
-          new TanimotoCoefficientSimilarity(dataModel), 10000000), k, lambda2, lambda3);
+      /* the bitsets answer faster than a cache lookup, so the similarities are not cached */
+      return buildRecommender(dataModel, new BitsetTanimotoSimilarity(dataModel));
+    }
+
+    Recommender buildRecommender(DataModel dataModel, ItemSimilarity similarity) throws TasteException {
+      if (numNeighbors > 0) {
+        NeighborIndex neighborIndex = NeighborIndex.build(dataModel, similarity, numNeighbors, numIndexThreads);
+        return new BiasedItemBasedRecommender(dataModel, similarity, k, lambda2, lambda3, neighborIndex);
+      }
+      return new BiasedItemBasedRecommender(dataModel, similarity, k, lambda2, lambda3);
     }
   }  
 
@@ -13,18 +13,14 @@
 
 package de.tuberlin.dima.recsys.ssnmm.interactioncut;
 
-import com.google.common.collect.Iterators;
+import de.tuberlin.dima.recsys.ssnmm.Utils;
 import org.apache.mahout.cf.taste.eval.DataModelBuilder;
 import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
-import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
-import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
-import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
 import org.apache.mahout.cf.taste.model.DataModel;
-import org.apache.mahout.cf.taste.model.Preference;
 import org.apache.mahout.cf.taste.model.PreferenceArray;
-import org.apache.mahout.common.iterator.FixedSizeSamplingIterator;
+import org.apache.mahout.common.RandomUtils;
 
-import java.util.Arrays;
+import java.util.Random;
 
 /**
  * Applies the 'interaction-cut' (selective down-sampling of power users) to the dataset
@@ -32,29 +28,29 @@ import java.util.Arrays;
 class InteractionCutDataModelBuilder implements DataModelBuilder {
 
     private final int maxPrefsPerUser;
+    private final Long seed;
 
     public InteractionCutDataModelBuilder(int maxPrefsPerUser) {
       this.maxPrefsPerUser = maxPrefsPerUser;
+      this.seed = null;
     }
 
+    /**
+     * Samples the preferences of the power users reproducibly, with a generator seeded for every data model built. The
+     * generator draws from a different stream than the split of the run with the same seed.
+     */
+    public InteractionCutDataModelBuilder(int maxPrefsPerUser, long seed) {
+      this.maxPrefsPerUser = maxPrefsPerUser;
+      this.seed = seed;
+    }
+
+    /**
+     * Samples directly into a {@link CompactDataModel}, without materializing intermediate preference objects
+     */
     @Override
     public DataModel buildDataModel(FastByIDMap<PreferenceArray> trainingData) {
-
-      FastByIDMap<PreferenceArray> sampledTrainingData = new FastByIDMap<PreferenceArray>();
-
-      LongPrimitiveIterator userIDs = trainingData.keySetIterator();
-      while (userIDs.hasNext()) {
-        long userID = userIDs.nextLong();
-        PreferenceArray prefs = trainingData.get(userID);
-        if (prefs.length() > maxPrefsPerUser) {
-          Preference[] sampledPrefs = Iterators.toArray(new FixedSizeSamplingIterator<Preference>(
-              maxPrefsPerUser, prefs.iterator()), Preference.class);
-          sampledTrainingData.put(userID, new GenericUserPreferenceArray(Arrays.asList(sampledPrefs)));
-        } else {
-          sampledTrainingData.put(userID, prefs);
-        }
-      }
-
-      return new GenericDataModel(sampledTrainingData);
+      Random random = seed != null ?
+          new Random(Utils.streamSeed(seed, SeededEvaluator.SAMPLING_STREAM)) : RandomUtils.getRandom();
+      return CompactDataModel.sample(trainingData, maxPrefsPerUser, random);
     }
   }
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.interactioncut;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import de.tuberlin.dima.recsys.ssnmm.TopK;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The numNeighbors most similar items of every item of a {@link DataModel}, computed once with an
+ * {@link ItemSimilarity}. Items are numbered by the ascending order of their ids, the neighbors of the item with index i
+ * are found at the positions offsets[i] until offsets[i + 1], sorted by index and thereby by id.
+ */
+public class NeighborIndex {
+
+  private final long[] itemIDs;
+  private final int[] offsets;
+  private final int[] neighbors;
+  private final double[] similarities;
+  private final int numNeighbors;
+
+  /* the same similarities grouped by neighbor: the items that hold item i among their neighbors */
+  private final int[] invertedOffsets;
+  private final int[] invertedItems;
+  private final double[] invertedSimilarities;
+
+  private NeighborIndex(long[] itemIDs, int[] offsets, int[] neighbors, double[] similarities, int numNeighbors) {
+    this.itemIDs = itemIDs;
+    this.offsets = offsets;
+    this.neighbors = neighbors;
+    this.similarities = similarities;
+    this.numNeighbors = numNeighbors;
+
+    int numItems = itemIDs.length;
+    invertedOffsets = new int[numItems + 1];
+    for (int neighbor : neighbors) {
+      invertedOffsets[neighbor + 1]++;
+    }
+    for (int item = 0; item < numItems; item++) {
+      invertedOffsets[item + 1] += invertedOffsets[item];
+    }
+    invertedItems = new int[neighbors.length];
+    invertedSimilarities = new double[neighbors.length];
+    int[] positions = Arrays.copyOf(invertedOffsets, numItems);
+    for (int item = 0; item < numItems; item++) {
+      for (int n = offsets[item]; n < offsets[item + 1]; n++) {
+        int position = positions[neighbors[n]]++;
+        invertedItems[position] = item;
+        invertedSimilarities[position] = similarities[n];
+      }
+    }
+  }
+
+  /**
+   * Computes the similarities of every item to all items that co-occur with it in the preferences of some user, items
+   * with an undefined similarity are not kept. The items are distributed over numThreads threads.
+   */
+  public static NeighborIndex build(final DataModel dataModel, final ItemSimilarity similarity,
+      final int numNeighbors, int numThreads) throws TasteException {
+
+    Preconditions.checkArgument(numNeighbors > 0 && numThreads > 0);
+
+    final long[] itemIDs = new long[dataModel.getNumItems()];
+    LongPrimitiveIterator ids = dataModel.getItemIDs();
+    for (int index = 0; index < itemIDs.length; index++) {
+      itemIDs[index] = ids.nextLong();
+    }
+    Arrays.sort(itemIDs);
+
+    final int numItems = itemIDs.length;
+    final int[][] rowNeighbors = new int[numItems][];
+    final double[][] rowSimilarities = new double[numItems][];
+    final AtomicInteger nextItem = new AtomicInteger();
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<Void>> results = Lists.newArrayListWithCapacity(numThreads);
+      for (int n = 0; n < numThreads; n++) {
+        results.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws TasteException {
+            int[] lastSeenForItem = new int[numItems];
+            int[] candidates = new int[numItems];
+            long[] candidateIDs = new long[numItems];
+            TopK topK = new TopK(numNeighbors);
+
+            int item;
+            while ((item = nextItem.getAndIncrement()) < numItems) {
+              int numCandidates = 0;
+              for (long userID : dataModel.getPreferencesForItem(itemIDs[item]).getIDs()) {
+                PreferenceArray preferences = dataModel.getPreferencesFromUser(userID);
+                for (int n = 0; n < preferences.length(); n++) {
+                  int other = Arrays.binarySearch(itemIDs, preferences.getItemID(n));
+                  if (other != item && lastSeenForItem[other] != item + 1) {
+                    lastSeenForItem[other] = item + 1;
+                    candidates[numCandidates++] = other;
+                  }
+                }
+              }
+
+              for (int n = 0; n < numCandidates; n++) {
+                candidateIDs[n] = itemIDs[candidates[n]];
+              }
+              double[] candidateSimilarities =
+                  similarity.itemSimilarities(itemIDs[item], Arrays.copyOf(candidateIDs, numCandidates));
+
+              topK.clear();
+              for (int n = 0; n < numCandidates; n++) {
+                if (!Double.isNaN(candidateSimilarities[n])) {
+                  topK.offer(candidates[n], candidateSimilarities[n]);
+                }
+              }
+
+              /* sort the neighbors by index, packing index and heap position into a long */
+              long[] packed = new long[topK.size()];
+              for (int n = 0; n < packed.length; n++) {
+                packed[n] = ((long) topK.id(n) << 32) | n;
+              }
+              Arrays.sort(packed);
+              rowNeighbors[item] = new int[packed.length];
+              rowSimilarities[item] = new double[packed.length];
+              for (int n = 0; n < packed.length; n++) {
+                rowNeighbors[item][n] = (int) (packed[n] >>> 32);
+                rowSimilarities[item][n] = topK.value((int) packed[n]);
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TasteException) {
+        throw (TasteException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    int[] offsets = new int[numItems + 1];
+    for (int item = 0; item < numItems; item++) {
+      offsets[item + 1] = offsets[item] + rowNeighbors[item].length;
+    }
+    int[] neighbors = new int[offsets[numItems]];
+    double[] similarities = new double[offsets[numItems]];
+    for (int item = 0; item < numItems; item++) {
+      System.arraycopy(rowNeighbors[item], 0, neighbors, offsets[item], rowNeighbors[item].length);
+      System.arraycopy(rowSimilarities[item], 0, similarities, offsets[item], rowSimilarities[item].length);
+    }
+
+    return new NeighborIndex(itemIDs, offsets, neighbors, similarities, numNeighbors);
+  }
+
+  public int numItems() {
+    return itemIDs.length;
+  }
+
+  /** maximum number of neighbors per item */
+  public int numNeighbors() {
+    return numNeighbors;
+  }
+
+  /** index of an item id or a negative number if the item is unknown */
+  public int index(long itemID) {
+    return Arrays.binarySearch(itemIDs, itemID);
+  }
+
+  public long itemID(int index) {
+    return itemIDs[index];
+  }
+
+  /** position of the first neighbor of the item */
+  public int neighborsStart(int index) {
+    return offsets[index];
+  }
+
+  /** position after the last neighbor of the item */
+  public int neighborsEnd(int index) {
+    return offsets[index + 1];
+  }
+
+  public int neighbor(int position) {
+    return neighbors[position];
+  }
+
+  public double similarity(int position) {
+    return similarities[position];
+  }
+
+  /** position of the first item that holds the given item among its neighbors */
+  public int invertedStart(int index) {
+    return invertedOffsets[index];
+  }
+
+  /** position after the last item that holds the given item among its neighbors */
+  public int invertedEnd(int index) {
+    return invertedOffsets[index + 1];
+  }
+
+  /** item at a position of the inverted lists, the items of a list are in ascending order */
+  public int invertedItem(int position) {
+    return invertedItems[position];
+  }
+
+  public double invertedSimilarity(int position) {
+    return invertedSimilarities[position];
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.interactioncut;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import de.tuberlin.dima.recsys.ssnmm.Utils;
+import org.apache.mahout.cf.taste.common.Refreshable;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.FastIDSet;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericDataModel;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.similarity.ItemSimilarity;
+import org.apache.mahout.math.map.OpenLongIntHashMap;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Applies a sequence of growing 'interaction-cuts' to the same training data. The preferences of every user are
+ * permuted once, the cut for maxPrefsPerUser keeps a prefix of the permutation, so the samples of the cuts are nested.
+ * The co-occurrence counts of the items are maintained incrementally while the cut grows, which makes the Tanimoto
+ * coefficients of all cuts about as expensive as the ones of the largest cut alone.
+ */
+class NestedInteractionCut {
+
+  private final long[] userIDs;
+  private final Preference[][] permutedPrefs;
+
+  /** dense index per item id, plus one as the map answers 0 for absent keys */
+  private final OpenLongIntHashMap itemIndices = new OpenLongIntHashMap();
+  private int[] numUsersPerItem = new int[1024];
+  /** number of users in the sample who rated both items, keyed by the packed indices of the item pair */
+  private final OpenLongIntHashMap cooccurrences = new OpenLongIntHashMap();
+
+  private int maxPrefsPerUser;
+  private DataModel sample;
+
+  NestedInteractionCut(FastByIDMap<PreferenceArray> trainingData, long seed) {
+
+    Random random = new Random(Utils.streamSeed(seed, SeededEvaluator.PERMUTATION_STREAM));
+    userIDs = new long[trainingData.size()];
+    permutedPrefs = new Preference[trainingData.size()][];
+
+    int user = 0;
+    LongPrimitiveIterator ids = trainingData.keySetIterator();
+    while (ids.hasNext()) {
+      long userID = ids.nextLong();
+      PreferenceArray prefs = trainingData.get(userID);
+      Preference[] permuted = new Preference[prefs.length()];
+      for (int n = 0; n < permuted.length; n++) {
+        int slot = random.nextInt(n + 1);
+        permuted[n] = permuted[slot];
+        permuted[slot] = prefs.get(n);
+      }
+      userIDs[user] = userID;
+      permutedPrefs[user] = permuted;
+      user++;
+    }
+  }
+
+  /**
+   * Grows the cut to maxPrefsPerUser and returns the sampled data. The similarity of this instance reflects the latest
+   * sample only, so the previous sample must not be used for recommendations anymore.
+   */
+  DataModel sample(int maxPrefsPerUser) {
+    Preconditions.checkArgument(maxPrefsPerUser >= this.maxPrefsPerUser, "The cuts must not shrink");
+
+    FastByIDMap<PreferenceArray> sampledData = new FastByIDMap<PreferenceArray>(userIDs.length);
+    int[] indices = new int[0];
+
+    for (int user = 0; user < userIDs.length; user++) {
+      Preference[] prefs = permutedPrefs[user];
+      int from = Math.min(prefs.length, this.maxPrefsPerUser);
+      int to = Math.min(prefs.length, maxPrefsPerUser);
+
+      if (indices.length < to) {
+        indices = new int[Math.max(to, indices.length * 2)];
+      }
+      for (int n = 0; n < to; n++) {
+        indices[n] = index(prefs[n].getItemID());
+      }
+      /* count the pairs that the newly sampled preferences form with all sampled preferences before them */
+      for (int n = from; n < to; n++) {
+        numUsersPerItem[indices[n]]++;
+        for (int m = 0; m < n; m++) {
+          cooccurrences.adjustOrPutValue(pair(indices[n], indices[m]), 1, 1);
+        }
+      }
+
+      List<Preference> sampledPrefs = Lists.newArrayListWithCapacity(to);
+      for (int n = 0; n < to; n++) {
+        sampledPrefs.add(prefs[n]);
+      }
+      sampledData.put(userIDs[user], new GenericUserPreferenceArray(sampledPrefs));
+    }
+
+    this.maxPrefsPerUser = maxPrefsPerUser;
+    sample = new GenericDataModel(sampledData);
+    return sample;
+  }
+
+  /**
+   * Tanimoto coefficients computed from the co-occurrence counts of the latest sample, equal to the ones of
+   * Mahout's TanimotoCoefficientSimilarity on the sampled data
+   */
+  ItemSimilarity similarity() {
+    return new ItemSimilarity() {
+      @Override
+      public double itemSimilarity(long itemID1, long itemID2) {
+        int index1 = itemIndices.get(itemID1) - 1;
+        int index2 = itemIndices.get(itemID2) - 1;
+        if (index1 < 0 || index2 < 0) {
+          return Double.NaN;
+        }
+        int intersection = index1 == index2 ? numUsersPerItem[index1] : cooccurrences.get(pair(index1, index2));
+        if (intersection == 0) {
+          return Double.NaN;
+        }
+        return (double) intersection / (numUsersPerItem[index1] + numUsersPerItem[index2] - intersection);
+      }
+
+      @Override
+      public double[] itemSimilarities(long itemID1, long[] itemID2s) {
+        double[] similarities = new double[itemID2s.length];
+        for (int n = 0; n < itemID2s.length; n++) {
+          similarities[n] = itemSimilarity(itemID1, itemID2s[n]);
+        }
+        return similarities;
+      }
+
+      @Override
+      public long[] allSimilarItemIDs(long itemID) throws TasteException {
+        FastIDSet similarItemIDs = new FastIDSet();
+        for (long userID : sample.getPreferencesForItem(itemID).getIDs()) {
+          similarItemIDs.addAll(sample.getItemIDsFromUser(userID));
+        }
+        similarItemIDs.remove(itemID);
+        return similarItemIDs.toArray();
+      }
+
+      @Override
+      public void refresh(Collection<Refreshable> alreadyRefreshed) {}
+    };
+  }
+
+  private int index(long itemID) {
+    int index = itemIndices.get(itemID) - 1;
+    if (index < 0) {
+      index = itemIndices.size();
+      itemIndices.put(itemID, index + 1);
+      if (index == numUsersPerItem.length) {
+        int[] grown = new int[index * 2];
+        System.arraycopy(numUsersPerItem, 0, grown, 0, index);
+        numUsersPerItem = grown;
+      }
+    }
+    return index;
+  }
+
+  /**
+   * Packs the indices of an item pair into a key. The map hashes a long by xoring its halves, which would let all
+   * pairs with the same xor collide, so the packed indices are scrambled by a multiplication with an odd constant,
+   * which keeps the keys distinct.
+   */
+  private static long pair(int index1, int index2) {
+    long packed = index1 < index2 ? ((long) index1 << 32) | index2 : ((long) index2 << 32) | index1;
+    return packed * 0x9e3779b97f4a7c15L;
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.interactioncut;
+
+import com.google.common.collect.Lists;
+import de.tuberlin.dima.recsys.ssnmm.Utils;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Counter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Histogram;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Metrics;
+import de.tuberlin.dima.recsys.ssnmm.metrics.PhaseTimer;
+import org.apache.mahout.cf.taste.common.NoSuchItemException;
+import org.apache.mahout.cf.taste.common.NoSuchUserException;
+import org.apache.mahout.cf.taste.common.TasteException;
+import org.apache.mahout.cf.taste.eval.DataModelBuilder;
+import org.apache.mahout.cf.taste.eval.RecommenderBuilder;
+import org.apache.mahout.cf.taste.impl.common.FastByIDMap;
+import org.apache.mahout.cf.taste.impl.common.LongPrimitiveIterator;
+import org.apache.mahout.cf.taste.impl.model.GenericUserPreferenceArray;
+import org.apache.mahout.cf.taste.model.DataModel;
+import org.apache.mahout.cf.taste.model.Preference;
+import org.apache.mahout.cf.taste.model.PreferenceArray;
+import org.apache.mahout.cf.taste.recommender.Recommender;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Variant of Mahout's AverageAbsoluteDifferenceRecommenderEvaluator whose split into training and test data is
+ * determined by an explicit seed instead of a shared random generator, so that runs can be repeated and executed
+ * concurrently. Estimates are capped to the range of the training ratings and missing estimates are skipped, like in
+ * Mahout. Besides the MAE, the RMSE of the same estimates is computed.
+ */
+class SeededEvaluator {
+
+  /** purposes of the random streams derived from the seed of a run */
+  static final long SPLIT_STREAM = 1;
+  static final long SAMPLING_STREAM = 2;
+  static final long PERMUTATION_STREAM = 3;
+
+  private final double trainingPercentage;
+  private final double evaluationPercentage;
+
+  private final PhaseTimer splitting = Metrics.get().timer("interactionCut.split");
+  private final PhaseTimer building = Metrics.get().timer("interactionCut.build");
+  private final PhaseTimer estimating = Metrics.get().timer("interactionCut.estimate");
+  private final Counter estimates = Metrics.get().counter("interactionCut.estimates");
+  /* latency of estimating all test preferences of a user */
+  private final Histogram userMicros = Metrics.get().histogram("interactionCut.userMicros");
+
+  SeededEvaluator(double trainingPercentage, double evaluationPercentage) {
+    this.trainingPercentage = trainingPercentage;
+    this.evaluationPercentage = evaluationPercentage;
+  }
+
+  Evaluation evaluate(RecommenderBuilder recommenderBuilder, DataModelBuilder dataModelBuilder, DataModel dataModel,
+      long seed) throws TasteException {
+    Split split = split(dataModel, seed);
+    PhaseTimer.Phase phase = building.start();
+    DataModel trainingModel = dataModelBuilder.buildDataModel(split.trainingPrefs());
+    Recommender recommender = recommenderBuilder.buildRecommender(trainingModel);
+    phase.stop();
+    return evaluate(recommender, trainingModel, split.testPrefs());
+  }
+
+  /**
+   * Samples the users to evaluate and splits their preferences into training and test preferences
+   */
+  Split split(DataModel dataModel, long seed) throws TasteException {
+
+    PhaseTimer.Phase phase = splitting.start();
+    Random random = new Random(Utils.streamSeed(seed, SPLIT_STREAM));
+
+    FastByIDMap<PreferenceArray> trainingPrefs = new FastByIDMap<PreferenceArray>(dataModel.getNumUsers());
+    FastByIDMap<PreferenceArray> testPrefs = new FastByIDMap<PreferenceArray>();
+
+    LongPrimitiveIterator userIDs = dataModel.getUserIDs();
+    while (userIDs.hasNext()) {
+      long userID = userIDs.nextLong();
+      if (random.nextDouble() >= evaluationPercentage) {
+        continue;
+      }
+      List<Preference> training = Lists.newArrayList();
+      List<Preference> test = Lists.newArrayList();
+      for (Preference preference : dataModel.getPreferencesFromUser(userID)) {
+        if (random.nextDouble() < trainingPercentage) {
+          training.add(preference);
+        } else {
+          test.add(preference);
+        }
+      }
+      if (!training.isEmpty()) {
+        trainingPrefs.put(userID, new GenericUserPreferenceArray(training));
+        if (!test.isEmpty()) {
+          testPrefs.put(userID, new GenericUserPreferenceArray(test));
+        }
+      }
+    }
+
+    phase.stop();
+    return new Split(trainingPrefs, testPrefs);
+  }
+
+  /**
+   * Computes the error of the recommender's estimates for the test preferences
+   */
+  Evaluation evaluate(Recommender recommender, DataModel trainingModel, FastByIDMap<PreferenceArray> testPrefs)
+      throws TasteException {
+
+    float minPreference = trainingModel.getMinPreference();
+    float maxPreference = trainingModel.getMaxPreference();
+
+    double absoluteError = 0;
+    double squaredError = 0;
+    long numEstimates = 0;
+
+    PhaseTimer.Phase phase = estimating.start();
+    LongPrimitiveIterator testUserIDs = testPrefs.keySetIterator();
+    while (testUserIDs.hasNext()) {
+      long userID = testUserIDs.nextLong();
+      PreferenceArray prefs = testPrefs.get(userID);
+      long start = System.nanoTime();
+      float[] estimates = estimate(recommender, userID, prefs);
+      userMicros.record((System.nanoTime() - start) / 1000);
+      this.estimates.add(prefs.length());
+      for (int n = 0; n < prefs.length(); n++) {
+        float estimate = estimates[n];
+        if (!Float.isNaN(estimate)) {
+          estimate = Math.max(minPreference, Math.min(maxPreference, estimate));
+          double error = Math.abs(prefs.getValue(n) - estimate);
+          absoluteError += error;
+          squaredError += error * error;
+          numEstimates++;
+        }
+      }
+    }
+
+    phase.stop();
+
+    return new Evaluation(Math.sqrt(squaredError / numEstimates), absoluteError / numEstimates);
+  }
+
+  /**
+   * Estimates all test preferences of a user in one call if the recommender supports it, unknown users and items
+   * yield no estimate
+   */
+  private static float[] estimate(Recommender recommender, long userID, PreferenceArray prefs)
+      throws TasteException {
+    float[] estimates = new float[prefs.length()];
+    try {
+      if (recommender instanceof BiasedItemBasedRecommender) {
+        try {
+          return ((BiasedItemBasedRecommender) recommender).estimatePreferences(userID, prefs.getIDs());
+        } catch (NoSuchItemException e) {
+          /* fall back to estimating the items one by one */
+        }
+      }
+      for (int n = 0; n < estimates.length; n++) {
+        try {
+          estimates[n] = recommender.estimatePreference(userID, prefs.getItemID(n));
+        } catch (NoSuchItemException e) {
+          estimates[n] = Float.NaN;
+        }
+      }
+    } catch (NoSuchUserException e) {
+      Arrays.fill(estimates, Float.NaN);
+    }
+    return estimates;
+  }
+
+  static class Split {
+
+    private final FastByIDMap<PreferenceArray> trainingPrefs;
+    private final FastByIDMap<PreferenceArray> testPrefs;
+
+    Split(FastByIDMap<PreferenceArray> trainingPrefs, FastByIDMap<PreferenceArray> testPrefs) {
+      this.trainingPrefs = trainingPrefs;
+      this.testPrefs = testPrefs;
+    }
+
+    FastByIDMap<PreferenceArray> trainingPrefs() {
+      return trainingPrefs;
+    }
+
+    FastByIDMap<PreferenceArray> testPrefs() {
+      return testPrefs;
+    }
+  }
+
+  static class Evaluation {
+
+    private final double rmse;
+    private final double mae;
+
+    Evaluation(double rmse, double mae) {
+      this.rmse = rmse;
+      this.mae = mae;
+    }
+
+    double rmse() {
+      return rmse;
+    }
+
+    double mae() {
+      return mae;
+    }
+  }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.metrics;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values such as latencies, the unit is up to the caller. Values below 64 get a
+ * bucket each, larger ones are grouped into 32 buckets per power of two, so percentiles are reported with a relative
+ * error of at most 1/32.
+ */
+public class Histogram {
+
+  private static final int LINEAR_BUCKETS = 64;
+  private static final int SUB_BUCKETS_LOG = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKETS_LOG;
+  /* the linear buckets cover the exponents up to 5, a long has 63 value bits */
+  private static final int NUM_BUCKETS = LINEAR_BUCKETS + (63 - 6 + 1) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+
+  public void record(long value) {
+    counts.incrementAndGet(bucket(Math.max(0, value)));
+  }
+
+  private static int bucket(long value) {
+    if (value < LINEAR_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKETS_LOG)) & (SUB_BUCKETS - 1);
+    return LINEAR_BUCKETS + (exponent - 6) * SUB_BUCKETS + subBucket;
+  }
+
+  /** smallest value that falls into the bucket */
+  private static long lowerBound(int bucket) {
+    if (bucket < LINEAR_BUCKETS) {
+      return bucket;
+    }
+    int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 6;
+    int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+    return (1L << exponent) | ((long) subBucket << (exponent - SUB_BUCKETS_LOG));
+  }
+
+  public long count() {
+    long count = 0;
+    for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+      count += counts.get(bucket);
+    }
+    return count;
+  }
+
+  /**
+   * Value below which the given fraction of the recorded values falls, 0 if nothing was recorded. Concurrent
+   * recordings may or may not be taken into account.
+   */
+  public long percentile(double fraction) {
+    Preconditions.checkArgument(fraction >= 0 && fraction <= 1);
+    long[] snapshot = new long[NUM_BUCKETS];
+    long count = 0;
+    for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+      snapshot[bucket] = counts.get(bucket);
+      count += snapshot[bucket];
+    }
+    long rank = Math.max(1, (long) Math.ceil(fraction * count));
+    long seen = 0;
+    for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+      seen += snapshot[bucket];
+      if (seen >= rank) {
+        return lowerBound(bucket);
+      }
+    }
+    return 0;
+  }
+
+  @Override
+  public String toString() {
+    return "count=" + count() + " p50=" + percentile(0.5) + " p99=" + percentile(0.99) + " p999=" +
+        percentile(0.999);
+  }
+}
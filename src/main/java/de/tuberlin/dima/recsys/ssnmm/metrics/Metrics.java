@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.metrics;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Registry of the counters, gauges, phase timers and histograms of a process. The jobs register their metrics in the
+ * {@link #get() default registry} under dotted names like "baseline.ratings" and report it with a
+ * {@link MetricsReporter}. Metrics are created on first use and live as long as the registry.
+ */
+public class Metrics {
+
+  private static final Metrics DEFAULT = new Metrics();
+  static {
+    DEFAULT.registerJvmGauges();
+  }
+
+  private final ConcurrentMap<String, Counter> counters = new ConcurrentSkipListMap<String, Counter>();
+  private final ConcurrentMap<String, Gauge> gauges = new ConcurrentSkipListMap<String, Gauge>();
+  private final ConcurrentMap<String, PhaseTimer> timers = new ConcurrentSkipListMap<String, PhaseTimer>();
+  private final ConcurrentMap<String, Histogram> histograms = new ConcurrentSkipListMap<String, Histogram>();
+
+  /** the registry shared by all jobs of the process */
+  public static Metrics get() {
+    return DEFAULT;
+  }
+
+  /**
+   * Reports the default registry as configured by the system properties ssnmm.metrics.interval (seconds between two
+   * log lines, 10 by default, 0 logs only when stopped) and ssnmm.metrics.jmx (true to register an MBean)
+   */
+  public static MetricsReporter startReporting(String job) {
+    return new MetricsReporter(DEFAULT, job, Integer.getInteger("ssnmm.metrics.interval", 10),
+        Boolean.getBoolean("ssnmm.metrics.jmx"));
+  }
+
+  public Counter counter(String name) {
+    Counter counter = counters.get(name);
+    if (counter == null) {
+      counters.putIfAbsent(name, new Counter());
+      counter = counters.get(name);
+    }
+    return counter;
+  }
+
+  public PhaseTimer timer(String name) {
+    PhaseTimer timer = timers.get(name);
+    if (timer == null) {
+      timers.putIfAbsent(name, new PhaseTimer(name));
+      timer = timers.get(name);
+    }
+    return timer;
+  }
+
+  public Histogram histogram(String name) {
+    Histogram histogram = histograms.get(name);
+    if (histogram == null) {
+      histograms.putIfAbsent(name, new Histogram());
+      histogram = histograms.get(name);
+    }
+    return histogram;
+  }
+
+  /** registers a gauge, replacing a previous one of the same name */
+  public void gauge(String name, Gauge gauge) {
+    gauges.put(name, gauge);
+  }
+
+  /**
+   * Current values of all metrics by name: the counts of the counters, the values of the gauges, the number of
+   * completed phases and the wall and CPU milliseconds of the timers, and the count and percentiles of the histograms
+   */
+  public Map<String, Number> snapshot() {
+    Map<String, Number> snapshot = new LinkedHashMap<String, Number>();
+    for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+      snapshot.put(entry.getKey(), entry.getValue().count());
+    }
+    for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+      snapshot.put(entry.getKey(), entry.getValue().value());
+    }
+    for (Map.Entry<String, PhaseTimer> entry : timers.entrySet()) {
+      PhaseTimer timer = entry.getValue();
+      snapshot.put(entry.getKey() + ".count", timer.count());
+      snapshot.put(entry.getKey() + ".wallMs", timer.wallMillis());
+      snapshot.put(entry.getKey() + ".cpuMs", timer.cpuMillis());
+    }
+    for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+      Histogram histogram = entry.getValue();
+      snapshot.put(entry.getKey() + ".count", histogram.count());
+      snapshot.put(entry.getKey() + ".p50", histogram.percentile(0.5));
+      snapshot.put(entry.getKey() + ".p99", histogram.percentile(0.99));
+      snapshot.put(entry.getKey() + ".p999", histogram.percentile(0.999));
+    }
+    return snapshot;
+  }
+
+  /** names of the counters, whose rates are reported as well */
+  Set<String> counterNames() {
+    return counters.keySet();
+  }
+
+  private void registerJvmGauges() {
+    final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    gauge("jvm.heap.usedMB", new Gauge() {
+      @Override
+      public double value() {
+        return memory.getHeapMemoryUsage().getUsed() >> 20;
+      }
+    });
+    gauge("jvm.heap.committedMB", new Gauge() {
+      @Override
+      public double value() {
+        return memory.getHeapMemoryUsage().getCommitted() >> 20;
+      }
+    });
+    gauge("jvm.gc.count", new Gauge() {
+      @Override
+      public double value() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+          count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+      }
+    });
+    gauge("jvm.gc.ms", new Gauge() {
+      @Override
+      public double value() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+          millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+      }
+    });
+    gauge("process.cpuMs", new Gauge() {
+      @Override
+      public double value() {
+        return PhaseTimer.processCpuNanos() / 1000000;
+      }
+    });
+  }
+}
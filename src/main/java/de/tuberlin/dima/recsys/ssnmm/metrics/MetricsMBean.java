@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.metrics;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanConstructorInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import java.util.Map;
+
+/**
+ * Exposes the current values of a registry as read-only attributes named like the keys of its snapshot. Metrics that
+ * are registered later show up when a JMX client refreshes the MBean info.
+ */
+class MetricsMBean implements DynamicMBean {
+
+  private final Metrics metrics;
+
+  MetricsMBean(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Override
+  public Object getAttribute(String name) throws AttributeNotFoundException {
+    Number value = metrics.snapshot().get(name);
+    if (value == null) {
+      throw new AttributeNotFoundException(name);
+    }
+    return value;
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] names) {
+    Map<String, Number> snapshot = metrics.snapshot();
+    AttributeList attributes = new AttributeList();
+    for (String name : names) {
+      if (snapshot.containsKey(name)) {
+        attributes.add(new Attribute(name, snapshot.get(name)));
+      }
+    }
+    return attributes;
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) {
+    throw new UnsupportedOperationException("The metrics are read-only");
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) {
+    throw new UnsupportedOperationException("The metrics have no operations");
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    Map<String, Number> snapshot = metrics.snapshot();
+    MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+    int n = 0;
+    for (Map.Entry<String, Number> entry : snapshot.entrySet()) {
+      attributes[n++] = new MBeanAttributeInfo(entry.getKey(), entry.getValue().getClass().getName(), entry.getKey(),
+          true, false, false);
+    }
+    return new MBeanInfo(getClass().getName(), "Metrics of the ssnmm jobs", attributes, new MBeanConstructorInfo[0],
+        new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Logs all metrics of a registry as a single line of key=value pairs in fixed intervals and once more when stopped,
+ * for example
+ *
+ * job=UserItemBaseline elapsedS=20 baseline.ratings=48000000 baseline.ratings.perSecond=2400000 ...
+ *
+ * Counters are followed by their rate per second since the previous line. Optionally, the metrics are exposed as the
+ * attributes of the MBean de.tuberlin.dima.recsys.ssnmm:type=Metrics,job=[job].
+ */
+public class MetricsReporter {
+
+  private static final Logger log = LoggerFactory.getLogger(MetricsReporter.class);
+
+  private final Metrics metrics;
+  private final String job;
+  private final long start = System.nanoTime();
+  private final ScheduledExecutorService scheduler;
+  private final ObjectName objectName;
+
+  private final Map<String, Long> previousCounts = new HashMap<String, Long>();
+  private long previousReport = start;
+
+  MetricsReporter(Metrics metrics, String job, int intervalInSeconds, boolean registerMBean) {
+    this.metrics = metrics;
+    this.job = job;
+
+    if (intervalInSeconds > 0) {
+      scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "metrics-reporter");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      scheduler.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          report();
+        }
+      }, intervalInSeconds, intervalInSeconds, TimeUnit.SECONDS);
+    } else {
+      scheduler = null;
+    }
+
+    objectName = registerMBean ? registerMBean() : null;
+  }
+
+  private ObjectName registerMBean() {
+    try {
+      ObjectName name = new ObjectName("de.tuberlin.dima.recsys.ssnmm:type=Metrics,job=" + ObjectName.quote(job));
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      server.registerMBean(new MetricsMBean(metrics), name);
+      return name;
+    } catch (JMException e) {
+      log.warn("Unable to register the metrics MBean", e);
+      return null;
+    }
+  }
+
+  /**
+   * Logs the metrics a last time and stops reporting them
+   */
+  public void stop() {
+    if (scheduler != null) {
+      scheduler.shutdownNow();
+    }
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        log.warn("Unable to unregister the metrics MBean", e);
+      }
+    }
+    report();
+  }
+
+  synchronized void report() {
+    long now = System.nanoTime();
+    double seconds = (now - previousReport) / 1e9;
+    previousReport = now;
+
+    Set<String> counterNames = metrics.counterNames();
+    StringBuilder line = new StringBuilder();
+    line.append("job=").append(job).append(" elapsedS=").append((now - start) / 1000000000L);
+    for (Map.Entry<String, Number> entry : metrics.snapshot().entrySet()) {
+      String name = entry.getKey();
+      line.append(' ').append(name).append('=').append(format(entry.getValue()));
+      if (counterNames.contains(name)) {
+        long count = entry.getValue().longValue();
+        Long previous = previousCounts.put(name, count);
+        long delta = count - (previous != null ? previous : 0);
+        line.append(' ').append(name).append(".perSecond=").append(seconds > 0 ? (long) (delta / seconds) : 0);
+      }
+    }
+    log.info(line.toString());
+  }
+
+  private static String format(Number value) {
+    if (value instanceof Double && value.doubleValue() == Math.rint(value.doubleValue())) {
+      return String.valueOf(value.longValue());
+    }
+    return value.toString();
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wall clock and CPU time spent in a phase of a job, such as a pass over the training data. The CPU time is that of
+ * the whole process, so it includes the worker threads of the phase and its ratio to the wall clock time shows how
+ * well the phase is parallelized. Phases that are still running are included in the reported times.
+ */
+public class PhaseTimer {
+
+  private static final Logger log = LoggerFactory.getLogger(PhaseTimer.class);
+
+  private final String name;
+
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong wallNanos = new AtomicLong();
+  private final AtomicLong cpuNanos = new AtomicLong();
+
+  /* number of running phases and the sums of their start times, from which their elapsed times are derived */
+  private final AtomicLong running = new AtomicLong();
+  private final AtomicLong runningWallStarts = new AtomicLong();
+  private final AtomicLong runningCpuStarts = new AtomicLong();
+
+  PhaseTimer(String name) {
+    this.name = name;
+  }
+
+  public Phase start() {
+    return start(null);
+  }
+
+  /**
+   * Starts a phase whose throughput in terms of the given counter is logged when it ends
+   */
+  public Phase start(Counter work) {
+    Phase phase = new Phase(work);
+    runningWallStarts.addAndGet(phase.wallStart);
+    runningCpuStarts.addAndGet(phase.cpuStart);
+    running.incrementAndGet();
+    return phase;
+  }
+
+  /** number of completed phases */
+  public long count() {
+    return count.get();
+  }
+
+  public long wallMillis() {
+    long now = System.nanoTime();
+    return (wallNanos.get() + running.get() * now - runningWallStarts.get()) / 1000000;
+  }
+
+  public long cpuMillis() {
+    long now = processCpuNanos();
+    return (cpuNanos.get() + running.get() * now - runningCpuStarts.get()) / 1000000;
+  }
+
+  /**
+   * A single run of the phase, to be stopped in a finally block
+   */
+  public class Phase {
+
+    private final long wallStart = System.nanoTime();
+    private final long cpuStart = processCpuNanos();
+    private final Counter work;
+    private final long workStart;
+    private boolean stopped;
+
+    Phase(Counter work) {
+      this.work = work;
+      workStart = work != null ? work.count() : 0;
+    }
+
+    /**
+     * Ends the phase and logs its times, stopping a phase more than once has no effect
+     */
+    public void stop() {
+      if (stopped) {
+        return;
+      }
+      stopped = true;
+      long wall = System.nanoTime() - wallStart;
+      long cpu = processCpuNanos() - cpuStart;
+      wallNanos.addAndGet(wall);
+      cpuNanos.addAndGet(cpu);
+      count.incrementAndGet();
+      running.decrementAndGet();
+      runningWallStarts.addAndGet(-wallStart);
+      runningCpuStarts.addAndGet(-cpuStart);
+
+      if (work != null) {
+        long done = work.count() - workStart;
+        log.info("phase={} wallMs={} cpuMs={} work={} workPerSecond={}", new Object[] { name, wall / 1000000,
+            cpu / 1000000, done, wall > 0 ? (long) (done * 1e9 / wall) : 0 });
+      } else {
+        log.info("phase={} wallMs={} cpuMs={}", new Object[] { name, wall / 1000000, cpu / 1000000 });
+      }
+    }
+  }
+
+  private static final OperatingSystemMXBean OPERATING_SYSTEM = ManagementFactory.getOperatingSystemMXBean();
+
+  /**
+   * CPU time of the process, only known on JVMs that provide the HotSpot management extensions, elsewhere 0
+   */
+  static long processCpuNanos() {
+    if (OPERATING_SYSTEM instanceof com.sun.management.OperatingSystemMXBean) {
+      return Math.max(0, ((com.sun.management.OperatingSystemMXBean) OPERATING_SYSTEM).getProcessCpuTime());
+    }
+    return 0;
+  }
+}
@@ -13,22 +13,37 @@
 
 package de.tuberlin.dima.recsys.ssnmm.ratingprediction;
 
+import com.google.common.collect.Lists;
+import de.tuberlin.dima.recsys.ssnmm.Rating;
 import de.tuberlin.dima.recsys.ssnmm.Utils;
-import org.apache.mahout.cf.taste.impl.common.FullRunningAverage;
-import org.apache.mahout.cf.taste.impl.common.RunningAverage;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Counter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Metrics;
+import de.tuberlin.dima.recsys.ssnmm.metrics.MetricsReporter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.PhaseTimer;
 
 import java.io.File;
 import java.io.FilenameFilter;
-import java.util.regex.Pattern;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Compute the average rating from the trainingset in a streaming fashion
+ * Compute the average rating from the trainingset in a streaming fashion, the training files are cut into line-aligned
+ * splits which are scanned in parallel
  */
 public class AverageRating {
-  
-  public static void main(String[] args) {
+
+  private static final long SPLIT_SIZE = 64L * 1024 * 1024;
+
+  public static void main(String[] args) throws IOException, InterruptedException {
 
     File dir = new File("/home/ssc/Entwicklung/datasets/yahoo-songs/");
+    int numThreads = Runtime.getRuntime().availableProcessors();
 
     File[] trainingFiles = dir.listFiles(new FilenameFilter() {
       @Override
@@ -37,21 +52,89 @@ public class AverageRating {
       }
     });
 
-    Pattern sep = Pattern.compile("\t");
+    MetricsReporter reporter = Metrics.startReporting("AverageRating");
+    try {
+      List<Iterable<Rating>> splits = Lists.newArrayList();
+      for (File trainingFile : trainingFiles) {
+        splits.addAll(Utils.splitRatings(trainingFile, SPLIT_SIZE));
+      }
+
+      Statistics statistics = computeStatistics(splits, numThreads);
+
+      System.out.println(statistics.numRatings + " ratings of " + statistics.users.cardinality() + " users and " +
+          statistics.items.cardinality() + " items");
+      System.out.println("average rating " + statistics.average());
+    } finally {
+      reporter.stop();
+    }
+  }
+
+  /**
+   * Scans the splits on a pool of numThreads threads, the per-split results are merged in the order of the splits
+   */
+  static Statistics computeStatistics(List<Iterable<Rating>> splits, int numThreads) throws InterruptedException {
 
-    RunningAverage avg = new FullRunningAverage();
+    final Counter ratingsProcessed = Metrics.get().counter("averageRating.ratings");
+    PhaseTimer.Phase phase = Metrics.get().timer("averageRating.scan").start(ratingsProcessed);
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<Statistics>> results = Lists.newArrayListWithCapacity(splits.size());
+      for (final Iterable<Rating> split : splits) {
+        results.add(executor.submit(new Callable<Statistics>() {
+          @Override
+          public Statistics call() {
+            Statistics statistics = new Statistics();
+            for (Rating rating : split) {
+              statistics.add(rating);
+            }
+            ratingsProcessed.add(statistics.numRatings);
+            return statistics;
+          }
+        }));
+      }
 
-    int ratingsProcessed = 0;
-    for (File trainingFile : trainingFiles) {
-      for (String line : Utils.readLines(trainingFile)) {
-        int rating = Integer.parseInt(sep.split(line)[2]);
-        avg.addDatum(rating);
-        if (++ratingsProcessed % 10000000 == 0) {
-          System.out.println(ratingsProcessed + " ratings processed");
-        }
+      Statistics merged = new Statistics();
+      for (Future<Statistics> result : results) {
+        merged.merge(result.get());
       }
+      return merged;
+
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+      phase.stop();
     }
-    System.out.println("average rating " + avg.getAverage());
+  }
+
+  /**
+   * Sum and count of the ratings as well as the users and items seen. As ratings are small multiples of 0.5,
+   * the sum is exact in double precision and does not depend on the order in which splits are merged.
+   */
+  static class Statistics {
 
+    private double sum;
+    private long numRatings;
+    private final BitSet users = new BitSet();
+    private final BitSet items = new BitSet();
+
+    void add(Rating rating) {
+      sum += rating.rating();
+      numRatings++;
+      users.set(rating.user());
+      items.set(rating.item());
+    }
+
+    void merge(Statistics other) {
+      sum += other.sum;
+      numRatings += other.numRatings;
+      users.or(other.users);
+      items.or(other.items);
+    }
+
+    double average() {
+      return sum / numRatings;
+    }
   }
 }
@@ -14,154 +14,467 @@
 package de.tuberlin.dima.recsys.ssnmm.ratingprediction;
 
 import com.google.common.base.Preconditions;
+import de.tuberlin.dima.recsys.ssnmm.DatasetProfile;
+import de.tuberlin.dima.recsys.ssnmm.IDDictionary;
+import de.tuberlin.dima.recsys.ssnmm.ModelBundle;
 import de.tuberlin.dima.recsys.ssnmm.Rating;
-import de.tuberlin.dima.recsys.ssnmm.RatingsIterable;
-import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.IntWritable;
-import org.apache.mahout.cf.taste.impl.common.FullRunningAverage;
-import org.apache.mahout.cf.taste.impl.common.RunningAverage;
-import org.apache.mahout.common.Pair;
+import de.tuberlin.dima.recsys.ssnmm.SimilarityMatrix;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Counter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Histogram;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Metrics;
+import de.tuberlin.dima.recsys.ssnmm.metrics.MetricsReporter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.PhaseTimer;
 import org.apache.mahout.common.iterator.FileLineIterable;
-import org.apache.mahout.common.iterator.sequencefile.PathFilters;
-import org.apache.mahout.common.iterator.sequencefile.PathType;
-import org.apache.mahout.common.iterator.sequencefile.SequenceFileDirIterable;
-import org.apache.mahout.math.Matrix;
-import org.apache.mahout.math.SparseRowMatrix;
-import org.apache.mahout.math.Vector;
-import org.apache.mahout.math.VectorWritable;
-import org.apache.mahout.math.map.OpenIntDoubleHashMap;
+import org.apache.mahout.math.list.DoubleArrayList;
+import org.apache.mahout.math.list.IntArrayList;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.DoubleBuffer;
 import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 /**
  * Reads the similarity matrix as well as the item and user biases into memory,
- * computes the prediction error towards held out ratings in a single read through the data
+ * computes the prediction error towards held out ratings in a single read through the data, the users are scored in
+ * parallel
  */
 public class Evaluate {
   
   public static void main(String[] args) throws IOException {
 
-    int numUsers = 1823179;
-    int numItems = 136736;
-    double mu = 3.157255412010664;
-
+    String profilePath = "/home/ssc/Desktop/yahoo/profile/";
+    String modelBundlePath = "/home/ssc/Desktop/yahoo/model.bin";
     String distributedSimilarityMatrixPath = "/home/ssc/Desktop/yahoo/similarityMatrix/";
+    String similarityMatrixFilePath = "/home/ssc/Desktop/yahoo/similarities.bin";
     String itemBiasesFilePath = "/home/ssc/Desktop/yahoo/itemBiases.tsv";
     String userBiasesFilePath = "/home/ssc/Desktop/yahoo/userBiases.tsv";
     String trainingSetPath = "/home/ssc/Entwicklung/datasets/yahoo-songs/songs.tsv";
     String holdoutSetPath = "home/ssc/Entwicklung/datasets/yahoo-songs/holdout.tsv";
 
-    Matrix similarities = new SparseRowMatrix(numItems, numItems);
+    DatasetProfile profile = DatasetProfile.read(new File(profilePath));
+    int numThreads = Runtime.getRuntime().availableProcessors();
 
-    System.out.println("Reading similarities...");
-    int similaritiesRead = 0;
-    Configuration conf = new Configuration();
-    for (Pair<IntWritable, VectorWritable> pair : new SequenceFileDirIterable<IntWritable, VectorWritable>(
-        new Path(distributedSimilarityMatrixPath), PathType.LIST, PathFilters.partFilter(), conf)) {
-
-      int item = pair.getFirst().get();
-      Iterator<Vector.Element> elements = pair.getSecond().get().iterateNonZero();
-      
-      while (elements.hasNext()) {
-        Vector.Element elem = elements.next();
-        similarities.setQuick(item, elem.index(), elem.get());
-        similaritiesRead++;
+    MetricsReporter reporter = Metrics.startReporting("Evaluate");
+    try {
+      File modelBundleFile = new File(modelBundlePath);
+      File distributedSimilarityMatrixDir = new File(distributedSimilarityMatrixPath);
+      File similarityMatrixFile = new File(similarityMatrixFilePath);
+      File itemBiasesFile = new File(itemBiasesFilePath);
+      File userBiasesFile = new File(userBiasesFilePath);
+
+      if (isStale(modelBundleFile, new File(profilePath), distributedSimilarityMatrixDir, similarityMatrixFile,
+          itemBiasesFile, userBiasesFile)) {
+        PhaseTimer.Phase phase = Metrics.get().timer("evaluate.writeModelBundle").start();
+        try {
+          writeModelBundle(profile, modelBundleFile, distributedSimilarityMatrixDir, similarityMatrixFile,
+              itemBiasesFile, userBiasesFile);
+        } finally {
+          phase.stop();
+        }
+      }
+
+      long start = System.currentTimeMillis();
+      ModelBundle model = ModelBundle.open(modelBundleFile);
+      Preconditions.checkState(model.numUsers() == profile.numUsers() && model.numItems() == profile.numItems(),
+          modelBundleFile + " holds " + model.numUsers() + " users and " + model.numItems() + " items, but the " +
+          "profile has " + profile.numUsers() + " users and " + profile.numItems() + " items");
+      System.out.println("Opened model with " + model.similarities().numSimilarities() + " similarities in " +
+          (System.currentTimeMillis() - start) + "ms");
+
+      Iterator<Rating> trainRatings = profile.readRatings(new File(trainingSetPath)).iterator();
+      Iterator<Rating> heldOutRatings = profile.readRatings(new File(holdoutSetPath)).iterator();
+
+      Evaluate evaluate = new Evaluate(model);
+      Errors errors = evaluate.evaluate(trainRatings, heldOutRatings, numThreads);
+
+      System.out.println(errors);
+    } finally {
+      reporter.stop();
+    }
+  }
+
+  /**
+   * Whether the model bundle is missing or older than one of the existing files or directories it is assembled from,
+   * e.g. because the biases were retrained or updated incrementally since it was written
+   */
+  static boolean isStale(File modelBundleFile, File... inputs) {
+    if (!modelBundleFile.exists()) {
+      return true;
+    }
+    for (File input : inputs) {
+      if (input.exists() && lastModified(input) > modelBundleFile.lastModified()) {
+        return true;
       }
     }
-    System.out.println("Found " + similaritiesRead + " similarities");
-    
-    Pattern sep = Pattern.compile("\t");
+    return false;
+  }
 
-    double[] itemBiases = new double[numItems];
-    double[] userBiases = new double[numUsers];
+  /** the latest modification of a file, or of a directory and the files in it */
+  private static long lastModified(File input) {
+    long lastModified = input.lastModified();
+    File[] children = input.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        lastModified = Math.max(lastModified, child.lastModified());
+      }
+    }
+    return lastModified;
+  }
 
-    System.out.println("Reading item biases");
-    for (String line : new FileLineIterable(new File(itemBiasesFilePath))) {
-      String[] parts = sep.split(line);
-      itemBiases[Integer.parseInt(parts[0])] = Double.parseDouble(parts[1]);
+  /**
+   * Assembles the similarities and the biases written by the training tools into a model bundle, the similarity
+   * matrix is read from the binary file or from the output of Mahout's ItemSimilarityJob. Biases of users and items
+   * unknown to the profile, which an {@link IncrementalBaseline} may have added, are left out
+   */
+  static void writeModelBundle(DatasetProfile profile, File modelBundleFile, File distributedSimilarityMatrixDir,
+      File similarityMatrixFile, File itemBiasesFile, File userBiasesFile) throws IOException {
+
+    IDDictionary itemIDs = profile.itemIDs();
+    IDDictionary userIDs = profile.userIDs();
+
+    System.out.println("Reading similarities...");
+    SimilarityMatrix similarities;
+    if (similarityMatrixFile.exists()) {
+      similarities = SimilarityMatrix.read(similarityMatrixFile);
+    } else {
+      similarities = SimilarityMatrix.readSequenceFiles(distributedSimilarityMatrixDir, profile.numItems(), itemIDs);
     }
+    System.out.println("Found " + similarities.numSimilarities() + " similarities");
 
+    double[] itemBiases = new double[profile.numItems()];
+    double[] userBiases = new double[profile.numUsers()];
+
+    System.out.println("Reading item biases");
+    int unknownItems = readBiases(itemBiasesFile, itemIDs, itemBiases);
     System.out.println("Reading user biases");
-    for (String line : new FileLineIterable(new File(userBiasesFilePath))) {
+    int unknownUsers = readBiases(userBiasesFile, userIDs, userBiases);
+    if (unknownItems > 0 || unknownUsers > 0) {
+      System.out.println("Left out the biases of " + unknownUsers + " users and " + unknownItems + " items " +
+          "unknown to the profile");
+    }
+
+    System.out.println("Writing model bundle");
+    ModelBundle.write(modelBundleFile, profile.mu(), userBiases, itemBiases, similarities, userIDs, itemIDs);
+  }
+
+  /** reads biases keyed by raw ids into the indices of the dictionary, returns the number of unknown ids */
+  private static int readBiases(File biasesFile, IDDictionary ids, double[] biases) throws IOException {
+    Pattern sep = Pattern.compile("\t");
+    int unknown = 0;
+    for (String line : new FileLineIterable(biasesFile)) {
       String[] parts = sep.split(line);
-      userBiases[Integer.parseInt(parts[0])] = Double.parseDouble(parts[1]);
-    }
-
-    Iterator<Rating> trainRatings = new RatingsIterable(new File(trainingSetPath)).iterator();
-    Iterator<Rating> heldOutRatings = new RatingsIterable(new File(holdoutSetPath)).iterator();
-    
-    int currentUser = 0;
-    OpenIntDoubleHashMap prefs = new OpenIntDoubleHashMap();
-    
-    int usersProcessed = 0;
-    RunningAverage rmse = new FullRunningAverage();
-    RunningAverage mae = new FullRunningAverage();
-
-    RunningAverage rmseBase = new FullRunningAverage();
-    RunningAverage maeBase = new FullRunningAverage();    
-
-    while (trainRatings.hasNext()) {
-      Rating rating = trainRatings.next();
-      if (rating.user() != currentUser) {
-
-        for (int n = 0; n < 10; n++) {
-          Rating heldOutRating = heldOutRatings.next();
-          Preconditions.checkState(heldOutRating.user() == currentUser);
-
-          double preference = 0.0;
-          double totalSimilarity = 0.0;
-          int count = 0;
-
-          Iterator<Vector.Element> similarItems = similarities.viewRow(heldOutRating.item()).iterateNonZero();
-          while (similarItems.hasNext()) {
-            Vector.Element similarity = similarItems.next();
-            int similarItem = similarity.index();
-            if (prefs.containsKey(similarItem)) {
-              preference += similarity.get() * (prefs.get(similarItem) - (mu + userBiases[currentUser] +
-                  itemBiases[similarItem]));
-              totalSimilarity += Math.abs(similarity.get());
-              count++;
+      long id = Long.parseLong(parts[0]);
+      if (ids.contains(id)) {
+        biases[ids.index(id)] = Double.parseDouble(parts[1]);
+      } else {
+        unknown++;
+      }
+    }
+    return unknown;
+  }
+
+  /** number of users handed to a worker at once */
+  private static final int USERS_PER_BLOCK = 1000;
+
+  /** the latency of every 64th prediction is recorded, timing all of them would slow the scoring down noticeably */
+  private static final int LATENCY_SAMPLING_MASK = 63;
 
+  private final Counter usersProcessed = Metrics.get().counter("evaluate.users");
+  private final Counter predictions = Metrics.get().counter("evaluate.predictions");
+  /* held out ratings of users without training ratings, they cannot be scored */
+  private final Counter unmatchedHeldOutRatings = Metrics.get().counter("evaluate.unmatchedHeldOutRatings");
+  private final Histogram predictionNanos = Metrics.get().histogram("evaluate.predictionNanos");
+
+  private final SimilarityMatrix similarities;
+  private final DoubleBuffer userBiases;
+  private final DoubleBuffer itemBiases;
+  private final double mu;
+
+  public Evaluate(SimilarityMatrix similarities, double[] userBiases, double[] itemBiases, double mu) {
+    this(similarities, DoubleBuffer.wrap(userBiases), DoubleBuffer.wrap(itemBiases), mu);
+  }
+
+  /**
+   * Scores with the memory mapped arrays of the bundle
+   */
+  public Evaluate(ModelBundle model) {
+    this(model.similarities(), model.userBiases(), model.itemBiases(), model.mu());
+  }
+
+  private Evaluate(SimilarityMatrix similarities, DoubleBuffer userBiases, DoubleBuffer itemBiases, double mu) {
+    this.similarities = similarities;
+    this.userBiases = userBiases;
+    this.itemBiases = itemBiases;
+    this.mu = mu;
+  }
+
+  /**
+   * Joins the training ratings of every user with any number of held out ratings of the user in a single pass, both
+   * have to be grouped by ascending user, which {@link de.tuberlin.dima.recsys.ssnmm.ExternalSort} establishes. The
+   * users are grouped into blocks which are scored on a pool of numThreads threads. The errors of the blocks are merged
+   * strictly in the order of the blocks, so the aggregated errors are identical for any number of threads.
+   */
+  public Errors evaluate(Iterator<Rating> trainRatings, Iterator<Rating> heldOutRatings, int numThreads) {
+
+    Preconditions.checkArgument(numThreads > 0);
+
+    PhaseTimer.Phase phase = Metrics.get().timer("evaluate.score").start(predictions);
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      /* at most two blocks per thread are held in memory */
+      int maxPendingBlocks = 2 * numThreads;
+      Queue<Future<Errors>> pending = new LinkedList<Future<Errors>>();
+      Errors errors = new Errors();
+
+      HeldOutRatings heldOut = new HeldOutRatings(heldOutRatings);
+      boolean hasUser = false;
+      int currentUser = 0;
+      UserBlock block = new UserBlock();
+
+      while (trainRatings.hasNext()) {
+        Rating rating = trainRatings.next();
+        if (!hasUser || rating.user() != currentUser) {
+          if (hasUser) {
+            Preconditions.checkState(rating.user() > currentUser,
+                "Training ratings are not grouped by ascending user, found user %s after %s", rating.user(),
+                currentUser);
+
+            block.completeUser(currentUser, heldOut);
+
+            if (block.numUsers() == USERS_PER_BLOCK) {
+              if (pending.size() == maxPendingBlocks) {
+                merge(errors, pending.remove().get());
+              }
+              pending.add(executor.submit(block));
+              block = new UserBlock();
             }
           }
+          hasUser = true;
+          currentUser = rating.user();
+        }
+        block.addTrainingRating(rating);
+      }
+      if (hasUser) {
+        block.completeUser(currentUser, heldOut);
+      }
+      heldOut.skipRemaining();
 
-          double baselineEstimate = mu + userBiases[currentUser] + itemBiases[heldOutRating.item()];
-          double estimate = baselineEstimate;
-          
-          if (count > 1) {
-            estimate += preference / totalSimilarity;
-          }
-          
-          double baseError = Math.abs(heldOutRating.rating() - baselineEstimate);
-          maeBase.addDatum(baseError);
-          rmseBase.addDatum(baseError * baseError);
+      while (!pending.isEmpty()) {
+        merge(errors, pending.remove().get());
+      }
+      merge(errors, block.scoreCompletedUsers());
 
-          double error = Math.abs(heldOutRating.rating() - estimate);
-          mae.addDatum(error);
-          rmse.addDatum(error * error);
+      return errors;
 
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+      phase.stop();
+    }
+  }
+
+  private void merge(Errors errors, Errors blockErrors) {
+    errors.merge(blockErrors);
+    usersProcessed.add(blockErrors.usersProcessed);
+    predictions.add(blockErrors.numPredictions);
+  }
+
+  /**
+   * The held out ratings, read ahead by one rating to join them with the training ratings of the same user. The
+   * iterated {@link Rating} may be reused, so the current rating is copied.
+   */
+  class HeldOutRatings {
+
+    private final Iterator<Rating> ratings;
+    private boolean hasCurrent;
+    private int user;
+    private int item;
+    private double rating;
+
+    HeldOutRatings(Iterator<Rating> ratings) {
+      this.ratings = ratings;
+      advance();
+    }
+
+    private void advance() {
+      if (!ratings.hasNext()) {
+        hasCurrent = false;
+        return;
+      }
+      Rating next = ratings.next();
+      Preconditions.checkState(!hasCurrent || next.user() >= user,
+          "Held out ratings are not grouped by ascending user, found user %s after %s", next.user(), user);
+      hasCurrent = true;
+      user = next.user();
+      item = next.item();
+      rating = next.rating();
+    }
+
+    /**
+     * Moves the held out ratings of the user into the block, skipping those of preceding users without training
+     * ratings
+     */
+    void moveTo(int user, IntArrayList items, DoubleArrayList ratings) {
+      while (hasCurrent && this.user < user) {
+        unmatchedHeldOutRatings.increment();
+        advance();
+      }
+      while (hasCurrent && this.user == user) {
+        items.add(item);
+        ratings.add(rating);
+        advance();
+      }
+    }
+
+    void skipRemaining() {
+      while (hasCurrent) {
+        unmatchedHeldOutRatings.increment();
+        advance();
+      }
+    }
+  }
+
+  /**
+   * The training and held out ratings of consecutive users, the training ratings of the last user may still be
+   * incomplete while the block is being filled
+   */
+  class UserBlock implements Callable<Errors> {
+
+    private final IntArrayList users = new IntArrayList(USERS_PER_BLOCK);
+    private final IntArrayList trainingOffsets = new IntArrayList(USERS_PER_BLOCK + 1);
+    private final IntArrayList trainingItems = new IntArrayList();
+    private final DoubleArrayList trainingRatings = new DoubleArrayList();
+    private final IntArrayList heldOutOffsets = new IntArrayList(USERS_PER_BLOCK + 1);
+    private final IntArrayList heldOutItems = new IntArrayList();
+    private final DoubleArrayList heldOutRatings = new DoubleArrayList();
+
+    UserBlock() {
+      trainingOffsets.add(0);
+      heldOutOffsets.add(0);
+    }
+
+    int numUsers() {
+      return users.size();
+    }
+
+    void addTrainingRating(Rating rating) {
+      trainingItems.add(rating.item());
+      trainingRatings.add(rating.rating());
+    }
+
+    /**
+     * Completes the current user of the block with the user's held out ratings
+     */
+    void completeUser(int user, HeldOutRatings heldOut) {
+      heldOut.moveTo(user, heldOutItems, heldOutRatings);
+      users.add(user);
+      trainingOffsets.add(trainingItems.size());
+      heldOutOffsets.add(heldOutItems.size());
+    }
+
+    @Override
+    public Errors call() {
+      return scoreCompletedUsers();
+    }
+
+    Errors scoreCompletedUsers() {
+
+      Errors errors = new Errors();
+      UserResiduals residuals = new UserResiduals(similarities, userBiases, itemBiases, mu);
+
+      for (int n = 0; n < users.size(); n++) {
+        int user = users.getQuick(n);
+        if (heldOutOffsets.getQuick(n) == heldOutOffsets.getQuick(n + 1)) {
+          /* nothing to score for users without held out ratings */
+          continue;
         }
+        residuals.load(user, trainingItems, trainingRatings, trainingOffsets.getQuick(n),
+            trainingOffsets.getQuick(n + 1));
+
+        for (int m = heldOutOffsets.getQuick(n); m < heldOutOffsets.getQuick(n + 1); m++) {
+          int item = heldOutItems.getQuick(m);
+          double rating = heldOutRatings.getQuick(m);
 
-        if (++usersProcessed % 10000 == 0) {
-          System.out.println(usersProcessed + " users processed, MAE " + mae.getAverage() +
-              ", RMSE " + Math.sqrt(rmse.getAverage()) + " | baseline MAE " + maeBase.getAverage() +
-              ", baseline RMSE " + Math.sqrt(rmseBase.getAverage()));
+          boolean sampled = (m & LATENCY_SAMPLING_MASK) == 0;
+          long start = sampled ? System.nanoTime() : 0;
+
+          double baselineEstimate = mu + userBiases.get(user) + itemBiases.get(item);
+          double estimate = baselineEstimate + residuals.weightedAverage(item);
+
+          if (sampled) {
+            predictionNanos.record(System.nanoTime() - start);
+          }
+
+          errors.add(Math.abs(rating - baselineEstimate), Math.abs(rating - estimate));
         }
+        errors.usersProcessed++;
+      }
 
-        currentUser = rating.user();
-        prefs.clear();
-        
-      } 
-      prefs.put(rating.item(), rating.rating());
+      return errors;
+    }
+  }
 
+  /**
+   * Sums of the absolute and squared errors of the predictions and of the baseline estimates
+   */
+  public static class Errors {
+
+    private double absoluteError;
+    private double squaredError;
+    private double baselineAbsoluteError;
+    private double baselineSquaredError;
+    private long numPredictions;
+    private long usersProcessed;
+
+    void add(double baselineError, double error) {
+      absoluteError += error;
+      squaredError += error * error;
+      baselineAbsoluteError += baselineError;
+      baselineSquaredError += baselineError * baselineError;
+      numPredictions++;
+    }
+
+    void merge(Errors other) {
+      absoluteError += other.absoluteError;
+      squaredError += other.squaredError;
+      baselineAbsoluteError += other.baselineAbsoluteError;
+      baselineSquaredError += other.baselineSquaredError;
+      numPredictions += other.numPredictions;
+      usersProcessed += other.usersProcessed;
     }
 
-    System.out.println(usersProcessed + " users processed, MAE " + mae.getAverage() +
-        ", RMSE " + Math.sqrt(rmse.getAverage()) + " | baseline MAE " + maeBase.getAverage() +
-        ", baseline RMSE " + Math.sqrt(rmseBase.getAverage()));
+    public double mae() {
+      return absoluteError / numPredictions;
+    }
+
+    public double rmse() {
+      return Math.sqrt(squaredError / numPredictions);
+    }
+
+    public double baselineMAE() {
+      return baselineAbsoluteError / numPredictions;
+    }
+
+    public double baselineRMSE() {
+      return Math.sqrt(baselineSquaredError / numPredictions);
+    }
+
+    @Override
+    public String toString() {
+      return usersProcessed + " users processed, MAE " + mae() + ", RMSE " + rmse() + " | baseline MAE " +
+          baselineMAE() + ", baseline RMSE " + baselineRMSE();
+    }
   }
 }
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.ratingprediction;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+import de.tuberlin.dima.recsys.ssnmm.CompactRatings;
+import de.tuberlin.dima.recsys.ssnmm.IDDictionary;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Metrics;
+import de.tuberlin.dima.recsys.ssnmm.metrics.MetricsReporter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.PhaseTimer;
+import org.apache.mahout.math.list.IntArrayList;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Keeps the biases of a {@link UserItemBaseline} up to date with appended ratings, without re-reading the training
+ * data. Per user and item, the number of its ratings and the sum that its bias is the regularized average of are kept,
+ * bias = sum / (reg + count). The sums start out as bias * (reg + count) of the trained biases, so a user or item
+ * without new ratings keeps its trained bias exactly. New ratings add their residuals to the sums of their user and
+ * item, after which the biases of the touched users and items are recomputed. The residuals of the new ratings
+ * depend on the biases they were computed with, refinement sweeps recompute them with the updated biases, in the
+ * order of the training (items first). The residuals of the previous ratings are not revisited, so the biases drift
+ * away from a full retraining over many updates.
+ */
+public class IncrementalBaseline {
+
+  public static void main(String[] args) throws IOException {
+
+    File stateFile = new File("/home/ssc/Desktop/yahoo/baseline.state");
+    File deltaFile = new File("/home/ssc/Entwicklung/datasets/yahoo-songs/delta.tsv");
+    File outputDir = new File("/home/ssc/Desktop/yahoo/");
+
+    int numSweeps = 2;
+
+    MetricsReporter reporter = Metrics.startReporting("IncrementalBaseline");
+    try {
+      IncrementalBaseline baseline = read(stateFile);
+      baseline.update(deltaFile, numSweeps);
+
+      baseline.write(stateFile);
+      baseline.persistBiases(outputDir);
+    } finally {
+      reporter.stop();
+    }
+  }
+
+  private static final int MAGIC = 0x49424c53;
+  private static final int VERSION = 2;
+
+  private final double mu;
+  private final double regU;
+  private final double regI;
+
+  /* growing dictionaries, new ratings may introduce users and items */
+  private final IDDictionary userIDs;
+  private final IDDictionary itemIDs;
+
+  private double[] userBiases;
+  private double[] userSums;
+  private int[] userCounts;
+
+  private double[] itemBiases;
+  private double[] itemSums;
+  private int[] itemCounts;
+
+  IncrementalBaseline(double mu, double regU, double regI, IDDictionary userIDs, IDDictionary itemIDs,
+      double[] userBiases, double[] userSums, int[] userCounts, double[] itemBiases, double[] itemSums,
+      int[] itemCounts) {
+    Preconditions.checkArgument(userBiases.length == userIDs.size() && userSums.length == userIDs.size() &&
+        userCounts.length == userIDs.size());
+    Preconditions.checkArgument(itemBiases.length == itemIDs.size() && itemSums.length == itemIDs.size() &&
+        itemCounts.length == itemIDs.size());
+    this.mu = mu;
+    this.regU = regU;
+    this.regI = regI;
+    this.userIDs = userIDs;
+    this.itemIDs = itemIDs;
+    this.userBiases = userBiases;
+    this.userSums = userSums;
+    this.userCounts = userCounts;
+    this.itemBiases = itemBiases;
+    this.itemSums = itemSums;
+    this.itemCounts = itemCounts;
+  }
+
+  /**
+   * Continues from trained biases and the rating counts they were computed from
+   */
+  IncrementalBaseline(double mu, double regU, double regI, IDDictionary userIDs, IDDictionary itemIDs,
+      double[] userBiases, int[] userCounts, double[] itemBiases, int[] itemCounts) {
+    this(mu, regU, regI, userIDs, itemIDs, userBiases, sums(userBiases, userCounts, regU), userCounts, itemBiases,
+        sums(itemBiases, itemCounts, regI), itemCounts);
+  }
+
+  /** the sums that reproduce the biases with the regularized counts */
+  private static double[] sums(double[] biases, int[] counts, double reg) {
+    Preconditions.checkArgument(biases.length == counts.length);
+    double[] sums = new double[biases.length];
+    for (int index = 0; index < biases.length; index++) {
+      sums[index] = biases[index] * (reg + counts[index]);
+    }
+    return sums;
+  }
+
+  /**
+   * Copies a dictionary into a growing one with the same indices, a dictionary of null stands for the identity
+   */
+  static IDDictionary growingCopy(IDDictionary ids, int size) {
+    IDDictionary copy = IDDictionary.growing();
+    for (int index = 0; index < size; index++) {
+      copy.index(ids != null ? ids.id(index) : index);
+    }
+    return copy;
+  }
+
+  /**
+   * Adds the ratings of the delta file, which are held in memory during the update, followed by numSweeps
+   * refinement sweeps over them
+   */
+  public void update(File delta, int numSweeps) throws IOException {
+    Preconditions.checkArgument(numSweeps >= 0);
+
+    System.out.println("Reading new ratings...");
+    PhaseTimer.Phase reading = Metrics.get().timer("incrementalBaseline.readDelta").start();
+    CompactRatings ratings = CompactRatings.load(delta, userIDs, itemIDs);
+    reading.stop();
+    System.out.println("Read " + ratings.numRatings() + " new ratings, now " + userIDs.size() + " users and " +
+        itemIDs.size() + " items");
+    grow();
+
+    /* the biases that the residuals of the new ratings were computed with */
+    double[] userBiasesUsed = new double[ratings.numRatings()];
+    double[] itemBiasesUsed = new double[ratings.numRatings()];
+
+    PhaseTimer.Phase adding = Metrics.get().timer("incrementalBaseline.add").start();
+    boolean[] isTouchedUser = new boolean[userBiases.length];
+    boolean[] isTouchedItem = new boolean[itemBiases.length];
+    IntArrayList touchedUsers = new IntArrayList();
+    IntArrayList touchedItems = new IntArrayList();
+
+    for (int user = 0; user < ratings.numUsers(); user++) {
+      for (int position = ratings.userStart(user); position < ratings.userEnd(user); position++) {
+        int item = ratings.item(position);
+        double rating = ratings.rating(position);
+
+        userSums[user] += rating - mu - itemBiases[item];
+        userCounts[user]++;
+        itemBiasesUsed[position] = itemBiases[item];
+
+        itemSums[item] += rating - mu - userBiases[user];
+        itemCounts[item]++;
+        userBiasesUsed[position] = userBiases[user];
+
+        if (!isTouchedUser[user]) {
+          isTouchedUser[user] = true;
+          touchedUsers.add(user);
+        }
+        if (!isTouchedItem[item]) {
+          isTouchedItem[item] = true;
+          touchedItems.add(item);
+        }
+      }
+    }
+
+    updateBiases(itemBiases, itemSums, itemCounts, regI, touchedItems);
+    updateBiases(userBiases, userSums, userCounts, regU, touchedUsers);
+    adding.stop();
+    System.out.println("Updated the biases of " + touchedUsers.size() + " users and " + touchedItems.size() +
+        " items");
+
+    PhaseTimer sweeps = Metrics.get().timer("incrementalBaseline.sweep");
+    for (int sweep = 0; sweep < numSweeps; sweep++) {
+      PhaseTimer.Phase sweeping = sweeps.start();
+      for (int user = 0; user < ratings.numUsers(); user++) {
+        for (int position = ratings.userStart(user); position < ratings.userEnd(user); position++) {
+          int item = ratings.item(position);
+          itemSums[item] += userBiasesUsed[position] - userBiases[user];
+          userBiasesUsed[position] = userBiases[user];
+        }
+      }
+      updateBiases(itemBiases, itemSums, itemCounts, regI, touchedItems);
+
+      for (int user = 0; user < ratings.numUsers(); user++) {
+        for (int position = ratings.userStart(user); position < ratings.userEnd(user); position++) {
+          int item = ratings.item(position);
+          userSums[user] += itemBiasesUsed[position] - itemBiases[item];
+          itemBiasesUsed[position] = itemBiases[item];
+        }
+      }
+      updateBiases(userBiases, userSums, userCounts, regU, touchedUsers);
+      sweeping.stop();
+      System.out.println("Refinement sweep " + (sweep + 1) + " done");
+    }
+  }
+
+  private static void updateBiases(double[] biases, double[] sums, int[] counts, double reg,
+      IntArrayList touched) {
+    for (int n = 0; n < touched.size(); n++) {
+      int index = touched.getQuick(n);
+      biases[index] = sums[index] / (reg + counts[index]);
+    }
+  }
+
+  /** sizes the arrays to the dictionaries, which grew by the users and items of new ratings */
+  private void grow() {
+    int numUsers = userIDs.size();
+    userBiases = Arrays.copyOf(userBiases, numUsers);
+    userSums = Arrays.copyOf(userSums, numUsers);
+    userCounts = Arrays.copyOf(userCounts, numUsers);
+
+    int numItems = itemIDs.size();
+    itemBiases = Arrays.copyOf(itemBiases, numItems);
+    itemSums = Arrays.copyOf(itemSums, numItems);
+    itemCounts = Arrays.copyOf(itemCounts, numItems);
+  }
+
+  /** estimate for raw ids, unknown users and items have no bias */
+  public double baselineEstimate(long userID, long itemID) {
+    double estimate = mu;
+    if (userIDs.contains(userID)) {
+      estimate += userBiases[userIDs.index(userID)];
+    }
+    if (itemIDs.contains(itemID)) {
+      estimate += itemBiases[itemIDs.index(itemID)];
+    }
+    return estimate;
+  }
+
+  public int numUsers() {
+    return userIDs.size();
+  }
+
+  public int numItems() {
+    return itemIDs.size();
+  }
+
+  /**
+   * Writes the biases keyed by the raw ids, in the format of {@link UserItemBaseline#persistBiases(File)}
+   */
+  public void persistBiases(File dir) throws IOException {
+    persist(new File(dir, "userBiases.tsv"), userBiases, userIDs);
+    persist(new File(dir, "itemBiases.tsv"), itemBiases, itemIDs);
+  }
+
+  private static void persist(File file, double[] biases, IDDictionary ids) throws IOException {
+    BufferedWriter writer = null;
+    try {
+      writer = Files.newWriter(file, Charsets.UTF_8);
+      for (int index = 0; index < biases.length; index++) {
+        writer.append(String.valueOf(ids.id(index)));
+        writer.append("\t");
+        writer.append(String.valueOf(biases[index]));
+        writer.append("\n");
+      }
+    } finally {
+      Closeables.closeQuietly(writer);
+    }
+  }
+
+  /**
+   * Persists the state, the ids are written in the order of their indices
+   */
+  public void write(File file) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeDouble(mu);
+      out.writeDouble(regU);
+      out.writeDouble(regI);
+      write(out, userIDs, userBiases, userSums, userCounts);
+      write(out, itemIDs, itemBiases, itemSums, itemCounts);
+    } finally {
+      Closeables.closeQuietly(out);
+    }
+  }
+
+  private static void write(DataOutputStream out, IDDictionary ids, double[] biases, double[] sums,
+      int[] counts) throws IOException {
+    out.writeInt(ids.size());
+    for (int index = 0; index < ids.size(); index++) {
+      out.writeLong(ids.id(index));
+      out.writeDouble(biases[index]);
+      out.writeDouble(sums[index]);
+      out.writeInt(counts[index]);
+    }
+  }
+
+  public static IncrementalBaseline read(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      Preconditions.checkState(in.readInt() == MAGIC, file + " is not a baseline state");
+      int version = in.readInt();
+      Preconditions.checkState(version == VERSION, "Unsupported version " + version + " of " + file);
+      double mu = in.readDouble();
+      double regU = in.readDouble();
+      double regI = in.readDouble();
+
+      int numUsers = in.readInt();
+      IDDictionary userIDs = IDDictionary.growing();
+      double[] userBiases = new double[numUsers];
+      double[] userSums = new double[numUsers];
+      int[] userCounts = new int[numUsers];
+      read(in, userIDs, userBiases, userSums, userCounts);
+
+      int numItems = in.readInt();
+      IDDictionary itemIDs = IDDictionary.growing();
+      double[] itemBiases = new double[numItems];
+      double[] itemSums = new double[numItems];
+      int[] itemCounts = new int[numItems];
+      read(in, itemIDs, itemBiases, itemSums, itemCounts);
+
+      return new IncrementalBaseline(mu, regU, regI, userIDs, itemIDs, userBiases, userSums, userCounts,
+          itemBiases, itemSums, itemCounts);
+    } finally {
+      Closeables.closeQuietly(in);
+    }
+  }
+
+  private static void read(DataInputStream in, IDDictionary ids, double[] biases, double[] sums,
+      int[] counts) throws IOException {
+    for (int index = 0; index < biases.length; index++) {
+      Preconditions.checkState(ids.index(in.readLong()) == index, "Duplicate id");
+      biases[index] = in.readDouble();
+      sums[index] = in.readDouble();
+      counts[index] = in.readInt();
+    }
+  }
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.ratingprediction;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import de.tuberlin.dima.recsys.ssnmm.CompactRatings;
+import de.tuberlin.dima.recsys.ssnmm.DatasetProfile;
+import de.tuberlin.dima.recsys.ssnmm.SimilarityMatrix;
+import de.tuberlin.dima.recsys.ssnmm.TopK;
+import de.tuberlin.dima.recsys.ssnmm.Utils;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Counter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Metrics;
+import de.tuberlin.dima.recsys.ssnmm.metrics.MetricsReporter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.PhaseTimer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory replacement for Mahout's ItemSimilarityJob: applies the interaction cut to every user, computes the
+ * pairwise item similarities on a pool of threads and keeps the maxSimilaritiesPerItem most similar items above the
+ * threshold per item. Every thread computes whole rows of the similarity matrix, so the result does not depend on the
+ * number of threads.
+ */
+public class ItemSimilarities {
+
+  public static void main(String[] args) throws IOException {
+
+    File trainingFile = new File("/home/ssc/Entwicklung/datasets/yahoo-songs/songs.tsv");
+    File profileDir = new File("/home/ssc/Desktop/yahoo/profile/");
+    File similarityMatrixFile = new File("/home/ssc/Desktop/yahoo/similarities.bin");
+
+    DatasetProfile profile = DatasetProfile.read(profileDir);
+    int numThreads = Runtime.getRuntime().availableProcessors();
+
+    ItemSimilarities itemSimilarities =
+        new ItemSimilarities(Measure.PEARSON_CORRELATION, 0.01, 50, 600, 0xdeadbeef, numThreads);
+
+    MetricsReporter reporter = Metrics.startReporting("ItemSimilarities");
+    try {
+      System.out.println("Reading ratings...");
+      PhaseTimer.Phase phase = Metrics.get().timer("similarities.readRatings").start();
+      CompactRatings ratings;
+      try {
+        ratings = CompactRatings.load(trainingFile, profile.userIDs(), profile.itemIDs());
+      } finally {
+        phase.stop();
+      }
+
+      SimilarityMatrix similarities = itemSimilarities.compute(ratings, profile.numItems());
+      System.out.println("Found " + similarities.numSimilarities() + " similarities");
+
+      similarities.write(similarityMatrixFile);
+    } finally {
+      reporter.stop();
+    }
+  }
+
+  /** the similarity measures of ItemSimilarityJob that are supported */
+  public enum Measure {
+    /** cosine of the item vectors centered by their mean */
+    PEARSON_CORRELATION,
+    COSINE,
+    /** ratio of the number of users who rated both items to the number of users who rated at least one of them */
+    TANIMOTO_COEFFICIENT
+  }
+
+  private static final int ROWS_PER_TASK = 256;
+
+  private final Counter rowsProcessed = Metrics.get().counter("similarities.rows");
+
+  private final Measure measure;
+  private final double threshold;
+  private final int maxSimilaritiesPerItem;
+  private final int maxPrefsPerUser;
+  private final long seed;
+  private final int numThreads;
+
+  public ItemSimilarities(Measure measure, double threshold, int maxSimilaritiesPerItem, int maxPrefsPerUser,
+      long seed, int numThreads) {
+    Preconditions.checkArgument(maxSimilaritiesPerItem > 0 && maxPrefsPerUser > 0 && numThreads > 0);
+    this.measure = measure;
+    this.threshold = threshold;
+    this.maxSimilaritiesPerItem = maxSimilaritiesPerItem;
+    this.maxPrefsPerUser = maxPrefsPerUser;
+    this.seed = seed;
+    this.numThreads = numThreads;
+  }
+
+  public SimilarityMatrix compute(CompactRatings ratings, int numItems) {
+
+    Preconditions.checkArgument(ratings.numItems() <= numItems);
+
+    System.out.println("Applying the interaction cut...");
+    PhaseTimer.Phase phase = Metrics.get().timer("similarities.interactionCut").start();
+    UserVectors users = interactionCut(ratings);
+    phase.stop();
+
+    System.out.println("Normalizing " + users.items.length + " ratings...");
+    phase = Metrics.get().timer("similarities.normalize").start();
+    ItemVectors items = normalize(users, numItems);
+    phase.stop();
+
+    System.out.println("Computing similarities...");
+    final int[][] rowNeighbors = new int[numItems][];
+    final float[][] rowValues = new float[numItems][];
+    phase = Metrics.get().timer("similarities.computeRows").start(rowsProcessed);
+    try {
+      computeRows(users, items, rowNeighbors, rowValues);
+    } finally {
+      phase.stop();
+    }
+
+    int numEntries = 0;
+    for (int[] neighbors : rowNeighbors) {
+      numEntries += neighbors.length;
+    }
+    int[] rows = new int[numEntries];
+    int[] neighbors = new int[numEntries];
+    float[] values = new float[numEntries];
+    int entry = 0;
+    for (int row = 0; row < numItems; row++) {
+      for (int n = 0; n < rowNeighbors[row].length; n++) {
+        rows[entry] = row;
+        neighbors[entry] = rowNeighbors[row][n];
+        values[entry] = rowValues[row][n];
+        entry++;
+      }
+    }
+
+    return SimilarityMatrix.fromEntries(numItems, rows, neighbors, values, numEntries);
+  }
+
+  /**
+   * Keeps a uniform sample of at most maxPrefsPerUser ratings per user. The sample of a user only depends on the seed
+   * and the user index.
+   */
+  UserVectors interactionCut(CompactRatings ratings) {
+
+    int numUsers = ratings.numUsers();
+    int[] userOffsets = new int[numUsers + 1];
+    for (int user = 0; user < numUsers; user++) {
+      int numPrefs = ratings.userEnd(user) - ratings.userStart(user);
+      userOffsets[user + 1] = userOffsets[user] + Math.min(numPrefs, maxPrefsPerUser);
+    }
+
+    int[] items = new int[userOffsets[numUsers]];
+    float[] values = new float[userOffsets[numUsers]];
+    int[] reservoir = new int[maxPrefsPerUser];
+    Random random = new Random();
+
+    for (int user = 0; user < numUsers; user++) {
+      int start = ratings.userStart(user);
+      int numPrefs = ratings.userEnd(user) - start;
+      int numSampled = userOffsets[user + 1] - userOffsets[user];
+
+      for (int n = 0; n < numSampled; n++) {
+        reservoir[n] = start + n;
+      }
+      if (numPrefs > numSampled) {
+        random.setSeed(Utils.streamSeed(seed, user));
+        for (int n = numSampled; n < numPrefs; n++) {
+          int slot = random.nextInt(n + 1);
+          if (slot < numSampled) {
+            reservoir[slot] = start + n;
+          }
+        }
+      }
+
+      for (int n = 0; n < numSampled; n++) {
+        items[userOffsets[user] + n] = ratings.item(reservoir[n]);
+        values[userOffsets[user] + n] = (float) ratings.rating(reservoir[n]);
+      }
+    }
+
+    return new UserVectors(userOffsets, items, values);
+  }
+
+  /**
+   * Transforms the sampled ratings according to the similarity measure and builds the item vectors from them
+   */
+  ItemVectors normalize(UserVectors users, int numItems) {
+
+    int[] counts = new int[numItems];
+    double[] sums = new double[numItems];
+    for (int n = 0; n < users.items.length; n++) {
+      counts[users.items[n]]++;
+      sums[users.items[n]] += users.values[n];
+    }
+
+    for (int n = 0; n < users.items.length; n++) {
+      int item = users.items[n];
+      if (measure == Measure.PEARSON_CORRELATION) {
+        users.values[n] -= (float) (sums[item] / counts[item]);
+      } else if (measure == Measure.TANIMOTO_COEFFICIENT) {
+        users.values[n] = 1;
+      }
+    }
+
+    int[] itemOffsets = new int[numItems + 1];
+    for (int item = 0; item < numItems; item++) {
+      itemOffsets[item + 1] = itemOffsets[item] + counts[item];
+    }
+
+    int[] positions = counts;
+    System.arraycopy(itemOffsets, 0, positions, 0, numItems);
+    int[] itemUsers = new int[users.items.length];
+    float[] itemValues = new float[users.items.length];
+    double[] norms = new double[numItems];
+
+    for (int user = 0; user < users.numUsers(); user++) {
+      for (int n = users.userOffsets[user]; n < users.userOffsets[user + 1]; n++) {
+        int item = users.items[n];
+        itemValues[positions[item]] = users.values[n];
+        itemUsers[positions[item]++] = user;
+        norms[item] += (double) users.values[n] * users.values[n];
+      }
+    }
+
+    if (measure != Measure.TANIMOTO_COEFFICIENT) {
+      for (int item = 0; item < numItems; item++) {
+        norms[item] = Math.sqrt(norms[item]);
+      }
+    }
+
+    return new ItemVectors(itemOffsets, itemUsers, itemValues, norms);
+  }
+
+  private void computeRows(final UserVectors users, final ItemVectors items, final int[][] rowNeighbors,
+      final float[][] rowValues) {
+
+    final int numItems = items.numItems();
+    final AtomicInteger nextRow = new AtomicInteger();
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<Void>> results = Lists.newArrayListWithCapacity(numThreads);
+      for (int n = 0; n < numThreads; n++) {
+        results.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() {
+            double[] dots = new double[numItems];
+            int[] lastSeenInRow = new int[numItems];
+            int[] candidates = new int[numItems];
+            TopK topSimilarities = new TopK(maxSimilaritiesPerItem);
+
+            int fromRow;
+            while ((fromRow = nextRow.getAndAdd(ROWS_PER_TASK)) < numItems) {
+              int toRow = Math.min(fromRow + ROWS_PER_TASK, numItems);
+              for (int row = fromRow; row < toRow; row++) {
+                computeRow(row, users, items, dots, lastSeenInRow, candidates, topSimilarities);
+                rowNeighbors[row] = new int[topSimilarities.size()];
+                rowValues[row] = new float[topSimilarities.size()];
+                for (int n = 0; n < topSimilarities.size(); n++) {
+                  rowNeighbors[row][n] = topSimilarities.id(n);
+                  rowValues[row][n] = (float) topSimilarities.value(n);
+                }
+              }
+              rowsProcessed.add(toRow - fromRow);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> result : results) {
+        result.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Accumulates the dot products of the row item with all co-occurring items in the scratch array, the rows are
+   * numbered from 1 in lastSeenInRow so that the array needs no clearing
+   */
+  private void computeRow(int row, UserVectors users, ItemVectors items, double[] dots, int[] lastSeenInRow,
+      int[] candidates, TopK topSimilarities) {
+
+    int numCandidates = 0;
+    for (int n = items.itemOffsets[row]; n < items.itemOffsets[row + 1]; n++) {
+      int user = items.users[n];
+      double value = items.values[n];
+      for (int m = users.userOffsets[user]; m < users.userOffsets[user + 1]; m++) {
+        int other = users.items[m];
+        if (other == row) {
+          continue;
+        }
+        if (lastSeenInRow[other] != row + 1) {
+          lastSeenInRow[other] = row + 1;
+          dots[other] = 0;
+          candidates[numCandidates++] = other;
+        }
+        dots[other] += value * users.values[m];
+      }
+    }
+
+    topSimilarities.clear();
+    for (int n = 0; n < numCandidates; n++) {
+      int other = candidates[n];
+      double similarity = similarity(dots[other], items.norms[row], items.norms[other]);
+      if (!Double.isNaN(similarity) && similarity >= threshold) {
+        topSimilarities.offer(other, similarity);
+      }
+    }
+  }
+
+  private double similarity(double dot, double norm, double otherNorm) {
+    if (measure == Measure.TANIMOTO_COEFFICIENT) {
+      return dot / (norm + otherNorm - dot);
+    }
+    return dot / (norm * otherNorm);
+  }
+
+  /** the sampled ratings grouped by user */
+  static class UserVectors {
+
+    final int[] userOffsets;
+    final int[] items;
+    final float[] values;
+
+    UserVectors(int[] userOffsets, int[] items, float[] values) {
+      this.userOffsets = userOffsets;
+      this.items = items;
+      this.values = values;
+    }
+
+    int numUsers() {
+      return userOffsets.length - 1;
+    }
+  }
+
+  /** the sampled ratings grouped by item, together with the norm of the item vectors */
+  static class ItemVectors {
+
+    final int[] itemOffsets;
+    final int[] users;
+    final float[] values;
+    final double[] norms;
+
+    ItemVectors(int[] itemOffsets, int[] users, float[] values, double[] norms) {
+      this.itemOffsets = itemOffsets;
+      this.users = users;
+      this.values = values;
+      this.norms = norms;
+    }
+
+    int numItems() {
+      return itemOffsets.length - 1;
+    }
+  }
+}
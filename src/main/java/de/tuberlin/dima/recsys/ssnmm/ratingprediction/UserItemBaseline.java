@@ -14,10 +14,19 @@
 package de.tuberlin.dima.recsys.ssnmm.ratingprediction;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
 import com.google.common.io.Closeables;
 import com.google.common.io.Files;
+import de.tuberlin.dima.recsys.ssnmm.CompactRatings;
+import de.tuberlin.dima.recsys.ssnmm.DatasetProfile;
+import de.tuberlin.dima.recsys.ssnmm.IDDictionary;
 import de.tuberlin.dima.recsys.ssnmm.Rating;
-import de.tuberlin.dima.recsys.ssnmm.RatingsIterable;
+import de.tuberlin.dima.recsys.ssnmm.Utils;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Counter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Metrics;
+import de.tuberlin.dima.recsys.ssnmm.metrics.MetricsReporter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.PhaseTimer;
 import org.apache.mahout.cf.taste.impl.common.FullRunningAverage;
 import org.apache.mahout.cf.taste.impl.common.RunningAverage;
 
@@ -25,6 +34,12 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 /**
@@ -37,22 +52,38 @@ public class UserItemBaseline {
     File trainingFile = new File("/home/ssc/Entwicklung/datasets/yahoo-songs/songs.tsv");
     File testFile = new File("/home/ssc/Entwicklung/datasets/yahoo-songs/holdout.tsv"); 
     File outputDir = new File("/home/ssc/Desktop/yahoo/");
+    File profileDir = new File("/home/ssc/Desktop/yahoo/profile/");
 
-    int numUsers = 1823179;
-    int numItems = 136736;
-    double mu = 3.157255412010664;
+    DatasetProfile profile = DatasetProfile.read(profileDir);
 
     int numIterations = 3;
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    boolean cacheRatings = true;
+    boolean persistIncrementalState = true;
     
-    UserItemBaseline baseline = new UserItemBaseline(trainingFile, testFile, 0.5, 0, numUsers, numItems, mu);
-                                                                                                             
-    for (int n = 0; n < numIterations; n++) {
-      baseline.train();
-    }
+    MetricsReporter reporter = Metrics.startReporting("UserItemBaseline");
+    try {
+      UserItemBaseline baseline = new UserItemBaseline(trainingFile, testFile, 0.5, 0, profile, numThreads);
 
-    baseline.test();
+      if (cacheRatings) {
+        baseline.cacheRatings();
+      }
+
+      for (int n = 0; n < numIterations; n++) {
+        baseline.train();
+      }
 
-    baseline.persistBiases(outputDir);
+      baseline.test();
+
+      baseline.persistBiases(outputDir);
+
+      /* the state from which IncrementalBaseline absorbs new ratings */
+      if (persistIncrementalState) {
+        baseline.incrementalBaseline().write(new File(outputDir, "baseline.state"));
+      }
+    } finally {
+      reporter.stop();
+    }
   }
 
   private double[] userBiases;
@@ -66,11 +97,82 @@ public class UserItemBaseline {
   private final double regI;
   private final double regU;
 
+  private final int numThreads;
+
+  private final IDDictionary userIDs;
+  private final IDDictionary itemIDs;
+
+  private CompactRatings cachedRatings;
+  private Accumulator[] accumulators;
+
+  /* rating counts of the last optimization of the item and user biases */
+  private int[] itemRatingsCount;
+  private int[] userRatingsCount;
+
+  /** training ratings processed in all passes */
+  private final Counter ratingsProcessed = Metrics.get().counter("baseline.ratings");
+
+  /** residual of a rating with respect to the item bias */
+  private final Residual itemResidual = new Residual() {
+    @Override
+    public int index(Rating rating) {
+      return rating.item();
+    }
+    @Override
+    public double residual(Rating rating) {
+      return rating.rating() - globalAverage - userBiases[rating.user()];
+    }
+  };
+
+  /** residual of a rating with respect to the user bias */
+  private final Residual userResidual = new Residual() {
+    @Override
+    public int index(Rating rating) {
+      return rating.user();
+    }
+    @Override
+    public double residual(Rating rating) {
+      return rating.rating() - globalAverage - itemBiases[rating.item()];
+    }
+  };
+
+  /** size of the splits of the training data that are processed in parallel, fixed to make the results reproducible */
+  private static final long SPLIT_SIZE = 64L * 1024 * 1024;
+  private static final int CACHED_RATINGS_PER_SPLIT = 4 * 1024 * 1024;
+  /**
+   * number of partial sums the splits are accumulated into, which bounds the number of threads a pass can use. It is
+   * fixed, as the partial sums determine the order of the additions and therefore the exact results.
+   */
+  private static final int NUM_ACCUMULATORS = 16;
+
   public UserItemBaseline(File ratings, File tests, double regU, double regI, int numUsers, int numItems, double mu) {
+    this(ratings, tests, regU, regI, numUsers, numItems, mu, 1);
+  }
+
+  public UserItemBaseline(File ratings, File tests, double regU, double regI, int numUsers, int numItems, double mu,
+      int numThreads) {
+    this(ratings, tests, regU, regI, numUsers, numItems, mu, numThreads, null, null);
+  }
+
+  /**
+   * Reads the ratings with the dense indices of the profile, the biases are sized to its number of users and items
+   */
+  public UserItemBaseline(File ratings, File tests, double regU, double regI, DatasetProfile profile,
+      int numThreads) {
+    this(ratings, tests, regU, regI, profile.numUsers(), profile.numItems(), profile.mu(), numThreads,
+        profile.userIDs(), profile.itemIDs());
+  }
+
+  private UserItemBaseline(File ratings, File tests, double regU, double regI, int numUsers, int numItems, double mu,
+      int numThreads, IDDictionary userIDs, IDDictionary itemIDs) {
+    Preconditions.checkArgument(numThreads > 0);
     this.ratings = ratings;
     this.tests = tests;
     this.regU = regU;
     this.regI = regI;
+    this.numThreads = numThreads;
+    this.userIDs = userIDs;
+    this.itemIDs = itemIDs;
 
     globalAverage = mu;
     
@@ -81,18 +183,39 @@ public class UserItemBaseline {
 
   }
 
+  /**
+   * Loads the training ratings into memory once, all following iterations read them from there. The test ratings are
+   * read once only, so they are streamed from their file.
+   */
+  void cacheRatings() throws IOException {
+    System.out.println("Caching ratings...");
+    PhaseTimer.Phase phase = Metrics.get().timer("baseline.cacheRatings").start();
+    try {
+      cachedRatings = CompactRatings.load(ratings, userIDs, itemIDs);
+      System.out.println("Cached " + cachedRatings.numRatings() + " training ratings in " +
+          (cachedRatings.sizeInBytes() / (1024 * 1024)) + "MB");
+    } finally {
+      phase.stop();
+    }
+  }
+
   void test() throws IOException {
 
     RunningAverage rmse = new FullRunningAverage();
     RunningAverage mae = new FullRunningAverage();
 
     System.out.println("Calculating predictions");
-    for (Rating rating : new RatingsIterable(tests)) {
+    PhaseTimer.Phase phase = Metrics.get().timer("baseline.test").start();
+    try {
+      for (Rating rating : Utils.readRatings(tests, userIDs, itemIDs)) {
 
-      double error = Math.abs(rating.rating() - baselineEstimate(rating.user(), rating.item()));
+        double error = Math.abs(rating.rating() - baselineEstimate(rating.user(), rating.item()));
 
-      mae.addDatum(error);
-      rmse.addDatum(error * error);
+        mae.addDatum(error);
+        rmse.addDatum(error * error);
+      }
+    } finally {
+      phase.stop();
     }
 
     System.out.println("MAE " + mae.getAverage() + ", RMSE: " + Math.sqrt(rmse.getAverage()));
@@ -111,18 +234,13 @@ public class UserItemBaseline {
     
     System.out.println("Optimizing item biases...");
     
-    int[] itemRatingsCount = new int[itemBiases.length];
-    Arrays.fill(itemRatingsCount, 0);
-
-    int ratingsProcessed = 0;
-    for (Rating rating : new RatingsIterable(ratings)) {
-
-      itemBiases[rating.item()] += rating.rating() - globalAverage - userBiases[rating.user()];
-      itemRatingsCount[rating.item()]++;
+    itemRatingsCount = new int[itemBiases.length];
 
-      if (++ratingsProcessed % 10000000 == 0) {
-        System.out.println((ratingsProcessed / 1000000) + "M ratings processed");
-      }
+    PhaseTimer.Phase phase = Metrics.get().timer("baseline.itemBiases").start(ratingsProcessed);
+    try {
+      accumulateResiduals(itemBiases, itemRatingsCount, itemResidual);
+    } finally {
+      phase.stop();
     }
     
     for (int item = 0; item < itemBiases.length; item++) {
@@ -137,18 +255,13 @@ public class UserItemBaseline {
 
     System.out.println("Optimizing user biases...");
 
-    int[] userRatingsCount = new int[userBiases.length];
-    Arrays.fill(userRatingsCount, 0);
-
-    int ratingsProcessed = 0;
-    for (Rating rating : new RatingsIterable(ratings)) {
+    userRatingsCount = new int[userBiases.length];
 
-      userBiases[rating.user()] += rating.rating() - globalAverage - itemBiases[rating.item()];
-      userRatingsCount[rating.user()]++;
-
-      if (++ratingsProcessed % 10000000 == 0) {
-        System.out.println((ratingsProcessed / 1000000) + "M ratings processed");
-      }
+    PhaseTimer.Phase phase = Metrics.get().timer("baseline.userBiases").start(ratingsProcessed);
+    try {
+      accumulateResiduals(userBiases, userRatingsCount, userResidual);
+    } finally {
+      phase.stop();
     }
 
     for (int user = 0; user < userBiases.length; user++) {
@@ -157,18 +270,141 @@ public class UserItemBaseline {
       }
     }
   }
+
+  /**
+   * Captures the biases and the rating counts of the last training iteration, from which an
+   * {@link IncrementalBaseline} continues with appended ratings. No further pass over the training data is needed.
+   */
+  IncrementalBaseline incrementalBaseline() {
+    Preconditions.checkState(itemRatingsCount != null && userRatingsCount != null, "Baseline is not trained");
+
+    return new IncrementalBaseline(globalAverage, regU, regI,
+        IncrementalBaseline.growingCopy(userIDs, userBiases.length),
+        IncrementalBaseline.growingCopy(itemIDs, itemBiases.length), userBiases.clone(), userRatingsCount.clone(),
+        itemBiases.clone(), itemRatingsCount.clone());
+  }
+
+  /**
+   * Adds up the residuals of all training ratings per user or item. The splits of the training data are assigned to
+   * NUM_ACCUMULATORS accumulators in contiguous ranges, every accumulator sums up its splits in their order on one of
+   * numThreads threads. The accumulators are then added to the totals strictly in their order, by numThreads threads
+   * that own disjoint ranges of the users or items. The assignment does not depend on the number of threads, so the
+   * totals are bit-for-bit identical for any number of threads.
+   */
+  private void accumulateResiduals(final double[] sums, final int[] counts, final Residual residual)
+      throws IOException {
+
+    final int size = sums.length;
+    final List<Iterable<Rating>> splits = cachedRatings != null ?
+        cachedRatings.splits(CACHED_RATINGS_PER_SPLIT) : Utils.splitRatings(ratings, SPLIT_SIZE, userIDs, itemIDs);
+    final Accumulator[] accumulators = accumulators(size);
+
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+    try {
+      List<Future<Long>> accumulated = Lists.newArrayListWithCapacity(NUM_ACCUMULATORS);
+      for (int n = 0; n < NUM_ACCUMULATORS; n++) {
+        final Accumulator accumulator = accumulators[n];
+        final List<Iterable<Rating>> assignedSplits =
+            splits.subList(n * splits.size() / NUM_ACCUMULATORS, (n + 1) * splits.size() / NUM_ACCUMULATORS);
+        accumulated.add(executor.submit(new Callable<Long>() {
+          @Override
+          public Long call() {
+            Arrays.fill(accumulator.sums, 0, size, 0);
+            Arrays.fill(accumulator.counts, 0, size, 0);
+            long numRatings = 0;
+            for (Iterable<Rating> split : assignedSplits) {
+              for (Rating rating : split) {
+                int index = residual.index(rating);
+                accumulator.sums[index] += residual.residual(rating);
+                accumulator.counts[index]++;
+                numRatings++;
+              }
+            }
+            return numRatings;
+          }
+        }));
+      }
+      for (Future<Long> numRatings : accumulated) {
+        ratingsProcessed.add(numRatings.get());
+      }
+
+      List<Future<?>> reduced = Lists.newArrayListWithCapacity(numThreads);
+      for (int n = 0; n < numThreads; n++) {
+        final int from = (int) ((long) n * size / numThreads);
+        final int to = (int) ((long) (n + 1) * size / numThreads);
+        reduced.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            for (Accumulator accumulator : accumulators) {
+              for (int index = from; index < to; index++) {
+                sums[index] += accumulator.sums[index];
+                counts[index] += accumulator.counts[index];
+              }
+            }
+          }
+        }));
+      }
+      for (Future<?> range : reduced) {
+        range.get();
+      }
+
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException(e);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * The accumulators are kept for all passes, sized for the larger of the user and item passes
+   */
+  private Accumulator[] accumulators(int size) {
+    if (accumulators == null || accumulators[0].sums.length < size) {
+      int capacity = Math.max(size, Math.max(userBiases.length, itemBiases.length));
+      accumulators = new Accumulator[NUM_ACCUMULATORS];
+      for (int n = 0; n < NUM_ACCUMULATORS; n++) {
+        accumulators[n] = new Accumulator(capacity);
+      }
+    }
+    return accumulators;
+  }
+
+  /**
+   * Selects the bias a rating contributes to and computes its residual
+   */
+  interface Residual {
+    int index(Rating rating);
+    double residual(Rating rating);
+  }
+
+  static class Accumulator {
+
+    final double[] sums;
+    final int[] counts;
+
+    Accumulator(int size) {
+      sums = new double[size];
+      counts = new int[size];
+    }
+  }
   
+  /**
+   * Writes the biases keyed by the raw ids
+   */
   void persistBiases(File dir) throws IOException {
-    persist(new File(dir, "userBiases.tsv"), userBiases);
-    persist(new File(dir, "itemBiases.tsv"), itemBiases);
+    persist(new File(dir, "userBiases.tsv"), userBiases, userIDs);
+    persist(new File(dir, "itemBiases.tsv"), itemBiases, itemIDs);
   }
 
-  private void persist(File file, double[] biases) throws IOException {
+  private void persist(File file, double[] biases, IDDictionary ids) throws IOException {
     BufferedWriter writer = null;
     try {
       writer = Files.newWriter(file, Charsets.UTF_8);
       for (int index = 0; index < biases.length; index++) {
-        writer.append(String.valueOf(index));
+        writer.append(String.valueOf(ids != null ? ids.id(index) : index));
         writer.append("\t");
         writer.append(String.valueOf(biases[index]));
         writer.append("\n");
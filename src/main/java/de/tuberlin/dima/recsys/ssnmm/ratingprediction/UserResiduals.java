@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.ratingprediction;
+
+import de.tuberlin.dima.recsys.ssnmm.CompactRatings;
+import de.tuberlin.dima.recsys.ssnmm.SimilarityMatrix;
+import org.apache.mahout.math.list.DoubleArrayList;
+import org.apache.mahout.math.list.IntArrayList;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+
+/**
+ * The training items of a single user in ascending order, together with the residuals of their ratings towards the
+ * baseline estimates. Instances are reused for one user after another and are not thread-safe.
+ */
+public class UserResiduals {
+
+  private final SimilarityMatrix similarities;
+  private final DoubleBuffer userBiases;
+  private final DoubleBuffer itemBiases;
+  private final double mu;
+
+  private int[] items = new int[256];
+  private double[] residuals = new double[256];
+  private double[] ratings = new double[256];
+  private long[] packed = new long[256];
+  private int numItems;
+
+  public UserResiduals(SimilarityMatrix similarities, DoubleBuffer userBiases, DoubleBuffer itemBiases, double mu) {
+    this.similarities = similarities;
+    this.userBiases = userBiases;
+    this.itemBiases = itemBiases;
+    this.mu = mu;
+  }
+
+  void load(int user, IntArrayList trainingItems, DoubleArrayList trainingRatings, int from, int to) {
+    int length = to - from;
+    ensureCapacity(length);
+    for (int n = 0; n < length; n++) {
+      packed[n] = ((long) trainingItems.getQuick(from + n) << 32) | n;
+      ratings[n] = trainingRatings.getQuick(from + n);
+    }
+    load(user, length);
+  }
+
+  /**
+   * Loads the ratings of a user of the compact ratings, a user without ratings has no items
+   */
+  public void load(int user, CompactRatings trainingRatings) {
+    int from = user < trainingRatings.numUsers() ? trainingRatings.userStart(user) : 0;
+    int to = user < trainingRatings.numUsers() ? trainingRatings.userEnd(user) : 0;
+    int length = to - from;
+    ensureCapacity(length);
+    for (int n = 0; n < length; n++) {
+      packed[n] = ((long) trainingRatings.item(from + n) << 32) | n;
+      ratings[n] = trainingRatings.rating(from + n);
+    }
+    load(user, length);
+  }
+
+  private void ensureCapacity(int length) {
+    if (length > items.length) {
+      int capacity = Math.max(length, items.length * 2);
+      items = new int[capacity];
+      residuals = new double[capacity];
+      ratings = new double[capacity];
+      packed = new long[capacity];
+    }
+  }
+
+  /**
+   * Sorts the items of the user by packing the item and the position of the rating into a long. If an item was rated
+   * several times, the last rating is kept.
+   */
+  private void load(int user, int length) {
+    Arrays.sort(packed, 0, length);
+
+    double userBaseline = mu + userBiases.get(user);
+    numItems = 0;
+    for (int n = 0; n < length; n++) {
+      int item = (int) (packed[n] >>> 32);
+      if (numItems > 0 && items[numItems - 1] == item) {
+        numItems--;
+      }
+      items[numItems] = item;
+      residuals[numItems] = ratings[(int) packed[n]] - (userBaseline + itemBiases.get(item));
+      numItems++;
+    }
+  }
+
+  /** number of distinct items of the user */
+  public int numItems() {
+    return numItems;
+  }
+
+  /** the n-th item of the user in ascending order */
+  public int item(int n) {
+    return items[n];
+  }
+
+  public double residual(int n) {
+    return residuals[n];
+  }
+
+  /** whether the user rated the item */
+  public boolean contains(int item) {
+    return Arrays.binarySearch(items, 0, numItems, item) >= 0;
+  }
+
+  /**
+   * Average of the residuals of the user's items that are neighbors of the item, weighted by their similarity, or 0
+   * if less than two of them are. The sorted neighbors of the similarity row are intersected with the user's items
+   * by a merge, or by galloping through the user's items if they are far more than the neighbors.
+   */
+  public double weightedAverage(int item) {
+
+    double preference = 0.0;
+    double totalSimilarity = 0.0;
+    int count = 0;
+
+    int position = similarities.rowStart(item);
+    int end = similarities.rowEnd(item);
+    int index = 0;
+    boolean gallop = numItems > 8 * (end - position);
+
+    while (position < end && index < numItems) {
+      int neighbor = similarities.neighbor(position);
+      if (gallop) {
+        index = gallop(neighbor, index);
+        if (index == numItems) {
+          break;
+        }
+      }
+      int userItem = items[index];
+      if (neighbor < userItem) {
+        position++;
+      } else if (neighbor > userItem) {
+        index++;
+      } else {
+        double similarity = similarities.value(position);
+        preference += similarity * residuals[index];
+        totalSimilarity += Math.abs(similarity);
+        count++;
+        position++;
+        index++;
+      }
+    }
+
+    return count > 1 ? preference / totalSimilarity : 0;
+  }
+
+  /** index of the first of the user's items from index on that is not smaller than the target */
+  private int gallop(int target, int index) {
+    int step = 1;
+    int low = index;
+    int high = index;
+    while (high < numItems && items[high] < target) {
+      low = high + 1;
+      high = index + step;
+      step <<= 1;
+    }
+    high = Math.min(high, numItems);
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (items[middle] < target) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.serving;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Closeables;
+import de.tuberlin.dima.recsys.ssnmm.IDDictionary;
+import de.tuberlin.dima.recsys.ssnmm.ModelBundle;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Histogram;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Starts a {@link PredictionServer} on localhost and measures its throughput and latencies with concurrent clients
+ * that request predictions for five random items of a random user, and recommendations in one out of ten requests.
+ */
+public class LoadTest {
+
+  public static void main(String[] args) throws Exception {
+
+    File modelBundleFile = new File("/home/ssc/Desktop/yahoo/model.bin");
+    File trainingFile = new File("/home/ssc/Entwicklung/datasets/yahoo-songs/songs.tsv");
+
+    int port = 8080;
+    int numServerThreads = Runtime.getRuntime().availableProcessors();
+    int numClients = 32;
+    int durationInSeconds = 60;
+
+    PredictionServer server = PredictionServer.load(modelBundleFile, trainingFile, numServerThreads);
+    server.start(port);
+    try {
+      ModelBundle model = ModelBundle.open(modelBundleFile, false);
+      run(port, model.userIDs(), model.itemIDs(), numClients, durationInSeconds);
+      System.out.println("Server:");
+      System.out.println(server.statistics());
+    } finally {
+      server.stop();
+    }
+  }
+
+  static void run(final int port, final IDDictionary userIDs, final IDDictionary itemIDs, int numClients,
+      int durationInSeconds) throws InterruptedException {
+
+    final Histogram latencies = new Histogram();
+    final AtomicLong numFailures = new AtomicLong();
+    final long end = System.currentTimeMillis() + durationInSeconds * 1000L;
+
+    System.out.println("Running " + numClients + " clients for " + durationInSeconds + "s...");
+    long start = System.currentTimeMillis();
+
+    ExecutorService clients = Executors.newFixedThreadPool(numClients);
+    for (int n = 0; n < numClients; n++) {
+      final long seed = n;
+      clients.execute(new Runnable() {
+        @Override
+        public void run() {
+          Random random = new Random(seed);
+          StringBuilder url = new StringBuilder();
+          while (System.currentTimeMillis() < end) {
+            url.setLength(0);
+            long userID = userIDs.id(random.nextInt(userIDs.size()));
+            if (random.nextInt(10) == 0) {
+              url.append("http://localhost:").append(port).append("/recommend?user=").append(userID).append("&n=10");
+            } else {
+              url.append("http://localhost:").append(port).append("/predict?user=").append(userID);
+              for (int item = 0; item < 5; item++) {
+                url.append("&item=").append(itemIDs.id(random.nextInt(itemIDs.size())));
+              }
+            }
+            long requestStart = System.nanoTime();
+            if (request(url.toString())) {
+              latencies.record((System.nanoTime() - requestStart) / 1000);
+            } else {
+              numFailures.incrementAndGet();
+            }
+          }
+        }
+      });
+    }
+    clients.shutdown();
+    clients.awaitTermination(durationInSeconds + 60, TimeUnit.SECONDS);
+
+    double seconds = (System.currentTimeMillis() - start) / 1000.0;
+    System.out.println("Clients: latency in us " + latencies + ", " + numFailures.get() + " failures");
+    System.out.println("Throughput: " + (long) (latencies.count() / seconds) + " requests/s");
+  }
+
+  private static boolean request(String url) {
+    HttpURLConnection connection = null;
+    InputStream in = null;
+    try {
+      connection = (HttpURLConnection) new URL(url).openConnection();
+      in = connection.getInputStream();
+      ByteStreams.toByteArray(in);
+      return connection.getResponseCode() == 200;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      Closeables.closeQuietly(in);
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.serving;
+
+import de.tuberlin.dima.recsys.ssnmm.CompactRatings;
+import de.tuberlin.dima.recsys.ssnmm.ModelBundle;
+import de.tuberlin.dima.recsys.ssnmm.SimilarityMatrix;
+import de.tuberlin.dima.recsys.ssnmm.TopK;
+import de.tuberlin.dima.recsys.ssnmm.ratingprediction.UserResiduals;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * Scores the items of one user after another with the biased neighborhood formula of
+ * {@link de.tuberlin.dima.recsys.ssnmm.ratingprediction.Evaluate}: the baseline estimate plus the average of the
+ * residuals of the user's rated neighbors of the item, weighted by similarity, if at least two neighbors were rated.
+ * Instances hold scratch space sized to the number of items and are meant to be used by a single thread.
+ */
+class NeighborhoodScorer {
+
+  private final SimilarityMatrix similarities;
+  /** row i holds the items that have item i as neighbor */
+  private final SimilarityMatrix transposedSimilarities;
+  private final DoubleBuffer userBiases;
+  private final DoubleBuffer itemBiases;
+  private final double mu;
+  private final CompactRatings ratings;
+
+  private final UserResiduals residuals;
+  private int user = -1;
+
+  private final double[] preferences;
+  private final double[] totalSimilarities;
+  private final int[] counts;
+  private final int[] candidates;
+
+  NeighborhoodScorer(ModelBundle model, SimilarityMatrix transposedSimilarities, CompactRatings ratings) {
+    similarities = model.similarities();
+    this.transposedSimilarities = transposedSimilarities;
+    userBiases = model.userBiases();
+    itemBiases = model.itemBiases();
+    mu = model.mu();
+    this.ratings = ratings;
+    residuals = new UserResiduals(similarities, userBiases, itemBiases, mu);
+
+    int numItems = model.numItems();
+    preferences = new double[numItems];
+    totalSimilarities = new double[numItems];
+    counts = new int[numItems];
+    candidates = new int[numItems];
+  }
+
+  /** loads the ratings of the user whose items are scored next */
+  void load(int user) {
+    if (this.user != user) {
+      residuals.load(user, ratings);
+      this.user = user;
+    }
+  }
+
+  double predict(int item) {
+    return mu + userBiases.get(user) + itemBiases.get(item) + residuals.weightedAverage(item);
+  }
+
+  /**
+   * Collects the howMany highest predictions among the items the user did not rate. Candidates are the items that
+   * have at least two of the user's items among their neighbors, the residuals are spread to them along the
+   * transposed similarity rows. The user's items are visited in ascending order, so every candidate sums up its
+   * neighbors in the same order as {@link #predict(int)} does, and both yield the same estimates.
+   */
+  void recommend(TopK topK) {
+    topK.clear();
+    int numCandidates = 0;
+    for (int n = 0; n < residuals.numItems(); n++) {
+      int userItem = residuals.item(n);
+      double residual = residuals.residual(n);
+      for (int position = transposedSimilarities.rowStart(userItem);
+           position < transposedSimilarities.rowEnd(userItem); position++) {
+        int candidate = transposedSimilarities.neighbor(position);
+        double similarity = transposedSimilarities.value(position);
+        if (counts[candidate] == 0) {
+          candidates[numCandidates++] = candidate;
+        }
+        preferences[candidate] += similarity * residual;
+        totalSimilarities[candidate] += Math.abs(similarity);
+        counts[candidate]++;
+      }
+    }
+
+    double userBaseline = mu + userBiases.get(user);
+    for (int n = 0; n < numCandidates; n++) {
+      int candidate = candidates[n];
+      if (counts[candidate] > 1 && !residuals.contains(candidate)) {
+        topK.offer(candidate, userBaseline + itemBiases.get(candidate) +
+            preferences[candidate] / totalSimilarities[candidate]);
+      }
+      preferences[candidate] = 0;
+      totalSimilarities[candidate] = 0;
+      counts[candidate] = 0;
+    }
+  }
+}
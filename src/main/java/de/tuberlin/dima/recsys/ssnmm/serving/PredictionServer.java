@@ -0,0 +1,405 @@
+/*
+ * Copyright (C) 2012 Sebastian Schelter <sebastian.schelter [at] tu-berlin.de>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except in compliance with
+ * the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License is distributed on
+ * an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the License for the
+ * specific language governing permissions and limitations under the License.
+ */
+
+package de.tuberlin.dima.recsys.ssnmm.serving;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import de.tuberlin.dima.recsys.ssnmm.CompactRatings;
+import de.tuberlin.dima.recsys.ssnmm.IDDictionary;
+import de.tuberlin.dima.recsys.ssnmm.ModelBundle;
+import de.tuberlin.dima.recsys.ssnmm.SimilarityMatrix;
+import de.tuberlin.dima.recsys.ssnmm.TopK;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Counter;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Histogram;
+import de.tuberlin.dima.recsys.ssnmm.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embeddable HTTP server that answers predictions of the biased neighborhood model of a {@link ModelBundle}, using the
+ * training ratings of the users as their history. It understands
+ *
+ * GET /predict?user=1&item=2&item=3, answering a line "item TAB prediction" per item,
+ * GET /recommend?user=1&n=10, answering the n items with the highest predictions among the unrated ones, and
+ * GET /stats, answering the number of requests and batches and the latency percentiles.
+ *
+ * Requests are grouped into micro-batches per user: a request joins the batch of its user that waits for a worker if
+ * there is one, so the ratings of the user are loaded once for the whole batch. Batches grow by themselves when the
+ * workers are busy, an idle server answers every request on its own.
+ *
+ * The server only listens on the loopback interface, unless it is started with another address.
+ */
+public class PredictionServer {
+
+  static {
+    /* the JDK server sends headers and body in separate packets, with Nagle's algorithm enabled the body waits for the
+       delayed acknowledgement of the client, which adds 40ms to every response */
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+  }
+
+  private static final Logger log = LoggerFactory.getLogger(PredictionServer.class);
+
+  public static void main(String[] args) throws Exception {
+
+    File modelBundleFile = new File("/home/ssc/Desktop/yahoo/model.bin");
+    File trainingFile = new File("/home/ssc/Entwicklung/datasets/yahoo-songs/songs.tsv");
+
+    int port = 8080;
+    /* use the address of a public interface or 0.0.0.0 to accept remote clients */
+    String address = "localhost";
+    int numThreads = Runtime.getRuntime().availableProcessors();
+
+    Metrics.startReporting("PredictionServer");
+
+    PredictionServer server = load(modelBundleFile, trainingFile, numThreads);
+    server.start(InetAddress.getByName(address), port);
+    System.out.println("Serving on " + address + ":" + port);
+  }
+
+  private final IDDictionary userIDs;
+  private final IDDictionary itemIDs;
+  private final ExecutorService workers;
+  private final ThreadLocal<NeighborhoodScorer> scorers;
+
+  /** the batch of every user that waits for a worker */
+  private final ConcurrentMap<Integer, UserBatch> openBatches = new ConcurrentHashMap<Integer, UserBatch>();
+
+  /** time from the arrival of a request until its response was written, in microseconds */
+  private final Histogram latencies = Metrics.get().histogram("server.requestMicros");
+  private final Counter numBatches = Metrics.get().counter("server.batches");
+  private final Counter numErrors = Metrics.get().counter("server.errors");
+
+  private HttpServer server;
+
+  public PredictionServer(ModelBundle model, CompactRatings ratings, int numThreads) {
+    this(model, model.userIDs(), model.itemIDs(), ratings, numThreads);
+  }
+
+  /**
+   * Serves the bundle with the given dictionaries of its ids, the ratings must use the same dense indices
+   */
+  PredictionServer(final ModelBundle model, IDDictionary userIDs, IDDictionary itemIDs, final CompactRatings ratings,
+      int numThreads) {
+    Preconditions.checkArgument(numThreads > 0);
+    Preconditions.checkArgument(userIDs.size() == model.numUsers() && itemIDs.size() == model.numItems(),
+        "The dictionaries must match the model bundle");
+    this.userIDs = userIDs;
+    this.itemIDs = itemIDs;
+    workers = Executors.newFixedThreadPool(numThreads);
+
+    final SimilarityMatrix transposedSimilarities = model.similarities().transpose();
+    scorers = new ThreadLocal<NeighborhoodScorer>() {
+      @Override
+      protected NeighborhoodScorer initialValue() {
+        return new NeighborhoodScorer(model, transposedSimilarities, ratings);
+      }
+    };
+  }
+
+  /**
+   * Maps the model bundle and loads the training ratings with the dense indices of its dictionaries
+   */
+  public static PredictionServer load(File modelBundleFile, File trainingFile, int numThreads) throws IOException {
+    System.out.println("Opening model...");
+    ModelBundle model = ModelBundle.open(modelBundleFile);
+    IDDictionary userIDs = model.userIDs();
+    IDDictionary itemIDs = model.itemIDs();
+    System.out.println("Loading ratings...");
+    CompactRatings ratings = CompactRatings.load(trainingFile, userIDs, itemIDs);
+    System.out.println("Loaded " + ratings.numRatings() + " ratings");
+    return new PredictionServer(model, userIDs, itemIDs, ratings, numThreads);
+  }
+
+  /**
+   * Listens on the given port of the loopback interface
+   */
+  public void start(int port) throws IOException {
+    /* resolving null yields the loopback address */
+    start(InetAddress.getByName(null), port);
+  }
+
+  public void start(InetAddress address, int port) throws IOException {
+    Preconditions.checkState(server == null, "The server is running already");
+    server = HttpServer.create(new InetSocketAddress(address, port), 0);
+    server.createContext("/predict", new RequestHandler(false));
+    server.createContext("/recommend", new RequestHandler(true));
+    server.createContext("/stats", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange, 200, statistics());
+      }
+    });
+    server.start();
+  }
+
+  public void stop() {
+    if (server != null) {
+      server.stop(0);
+      server = null;
+    }
+    workers.shutdown();
+    try {
+      workers.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public Histogram latencies() {
+    return latencies;
+  }
+
+  public String statistics() {
+    long numRequests = latencies.count();
+    long batches = numBatches.count();
+    return "requests\t" + numRequests + "\n" +
+        "batches\t" + batches + "\n" +
+        "requestsPerBatch\t" + (batches > 0 ? (double) numRequests / batches : 0) + "\n" +
+        "errors\t" + numErrors.count() + "\n" +
+        "p50us\t" + latencies.percentile(0.5) + "\n" +
+        "p99us\t" + latencies.percentile(0.99) + "\n";
+  }
+
+  /**
+   * Validates the request on the thread of the HTTP server and hands it to the batch of its user
+   */
+  class RequestHandler implements HttpHandler {
+
+    private final boolean recommend;
+
+    RequestHandler(boolean recommend) {
+      this.recommend = recommend;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      long start = System.nanoTime();
+      try {
+        Long userID = null;
+        List<Long> itemIDsToPredict = Lists.newArrayList();
+        int howMany = 10;
+
+        String query = exchange.getRequestURI().getRawQuery();
+        for (String parameter : query != null ? query.split("&") : new String[0]) {
+          int separator = parameter.indexOf('=');
+          String name = separator >= 0 ? parameter.substring(0, separator) : parameter;
+          String value = separator >= 0 ? parameter.substring(separator + 1) : "";
+          if ("user".equals(name)) {
+            userID = Long.parseLong(value);
+          } else if ("item".equals(name)) {
+            itemIDsToPredict.add(Long.parseLong(value));
+          } else if ("n".equals(name)) {
+            howMany = Integer.parseInt(value);
+          }
+        }
+
+        if (userID == null || (!recommend && itemIDsToPredict.isEmpty()) || howMany <= 0) {
+          error(exchange, 400, "Missing or invalid parameters");
+          return;
+        }
+        if (!userIDs.contains(userID)) {
+          error(exchange, 404, "Unknown user " + userID);
+          return;
+        }
+        /* the heap of the top items is allocated up front, there are never more candidates than items */
+        howMany = Math.min(howMany, Math.max(itemIDs.size(), 1));
+
+        int[] items = new int[itemIDsToPredict.size()];
+        for (int n = 0; n < items.length; n++) {
+          long itemID = itemIDsToPredict.get(n);
+          if (!itemIDs.contains(itemID)) {
+            error(exchange, 404, "Unknown item " + itemID);
+            return;
+          }
+          items[n] = itemIDs.index(itemID);
+        }
+
+        submit(new Request(exchange, start, userIDs.index(userID), items, recommend ? howMany : 0));
+
+      } catch (NumberFormatException e) {
+        error(exchange, 400, "Malformed number: " + e.getMessage());
+      }
+    }
+  }
+
+  private void error(HttpExchange exchange, int status, String message) throws IOException {
+    numErrors.increment();
+    respond(exchange, status, message + "\n");
+  }
+
+  private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+    byte[] bytes = body.getBytes(Charsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(bytes);
+    } finally {
+      exchange.close();
+    }
+  }
+
+  /**
+   * Adds the request to the waiting batch of its user, or opens a new batch if there is none. A batch that a worker
+   * took already refuses further requests.
+   */
+  private void submit(Request request) {
+    while (true) {
+      UserBatch batch = openBatches.get(request.user);
+      if (batch == null) {
+        batch = new UserBatch(request.user);
+        batch.add(request);
+        if (openBatches.putIfAbsent(request.user, batch) == null) {
+          numBatches.increment();
+          workers.execute(batch);
+          return;
+        }
+      } else if (batch.add(request)) {
+        return;
+      }
+    }
+  }
+
+  static class Request {
+
+    final HttpExchange exchange;
+    final long start;
+    final int user;
+    final int[] items;
+    /** number of recommendations, 0 for a predict request */
+    final int howMany;
+
+    Request(HttpExchange exchange, long start, int user, int[] items, int howMany) {
+      this.exchange = exchange;
+      this.start = start;
+      this.user = user;
+      this.items = items;
+      this.howMany = howMany;
+    }
+  }
+
+  class UserBatch implements Runnable {
+
+    private final int user;
+    private final List<Request> requests = Lists.newArrayListWithCapacity(4);
+    private boolean taken;
+
+    UserBatch(int user) {
+      this.user = user;
+    }
+
+    synchronized boolean add(Request request) {
+      if (taken) {
+        return false;
+      }
+      requests.add(request);
+      return true;
+    }
+
+    private synchronized List<Request> take() {
+      taken = true;
+      return requests;
+    }
+
+    @Override
+    public void run() {
+      openBatches.remove(user, this);
+      List<Request> batch = take();
+
+      NeighborhoodScorer scorer = scorers.get();
+      boolean loaded = false;
+
+      /* every request is answered, a failure must not leave the other requests of the batch hanging */
+      for (Request request : batch) {
+        try {
+          if (!loaded) {
+            scorer.load(user);
+            loaded = true;
+          }
+          respond(request.exchange, 200, answer(scorer, request));
+        } catch (IOException e) {
+          /* the client went away */
+          numErrors.increment();
+        } catch (RuntimeException e) {
+          fail(request, e);
+        }
+        latencies.record((System.nanoTime() - request.start) / 1000);
+      }
+    }
+
+    private String answer(NeighborhoodScorer scorer, Request request) {
+      StringBuilder response = new StringBuilder();
+      if (request.howMany > 0) {
+        TopK topK = new TopK(request.howMany);
+        scorer.recommend(topK);
+        appendSorted(response, topK);
+      } else {
+        for (int item : request.items) {
+          response.append(itemIDs.id(item)).append('\t').append(scorer.predict(item)).append('\n');
+        }
+      }
+      return response.toString();
+    }
+
+    private void fail(Request request, RuntimeException e) {
+      log.error("Unable to answer a request of user " + userIDs.id(user), e);
+      try {
+        error(request.exchange, 500, "Internal error");
+      } catch (IOException ioe) {
+        /* the client went away or the response was sent partially already */
+      } finally {
+        request.exchange.close();
+      }
+    }
+
+    /** the retained pairs of the heap in descending order of their values */
+    private void appendSorted(StringBuilder response, TopK topK) {
+      Integer[] positions = new Integer[topK.size()];
+      for (int n = 0; n < positions.length; n++) {
+        positions[n] = n;
+      }
+      final TopK heap = topK;
+      Arrays.sort(positions, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          int byValue = Double.compare(heap.value(b), heap.value(a));
+          return byValue != 0 ? byValue : heap.id(a) - heap.id(b);
+        }
+      });
+      for (int position : positions) {
+        response.append(itemIDs.id(heap.id(position))).append('\t').append(heap.value(position)).append('\n');
+      }
+    }
+  }
+}